@@ -29,7 +29,7 @@
 bl_info = {
     "name": "Mastodon Blender View",
     "author": "Matthias Arzt",
-    "version": (0, 1, 0),
+    "version": (0, 2, 0),
     "blender": (2, 93, 8),
     "location": "View3D > Mastodon",
     "warning": "",
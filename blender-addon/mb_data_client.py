@@ -0,0 +1,119 @@
+###
+# #%L
+# A Mastodon plugin data allows to show the embryo in Blender.
+# %%
+# Copyright (C) 2022 Matthias Arzt
+# %%
+# Redistribution and use in source and binary forms, with or without
+# modification, are permitted provided that the following conditions are met:
+# 
+# 1. Redistributions of source code must retain the above copyright notice,
+#    this list of conditions and the following disclaimer.
+# 2. Redistributions in binary form must reproduce the above copyright notice,
+#    this list of conditions and the following disclaimer in the documentation
+#    and/or other materials provided with the distribution.
+# 
+# THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+# AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+# IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+# ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+# LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+# CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+# SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+# INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+# CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+# ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+# POSSIBILITY OF SUCH DAMAGE.
+# #L%
+###
+import grpc
+import queue
+import threading
+
+from . import mastodon_blender_view_pb2 as pb
+from . import mastodon_blender_view_pb2_grpc as rpc
+
+# Fetches the tracklets from the data service hosted by Mastodon, if
+# Blender was started with "--mastodon-data". The time line is split into
+# blocks of frames. The blocks around the current frame are fetched as
+# the user scrubs through the time line.
+
+BLOCK_SIZE = 50
+
+# number of blocks fetched before and after the block of the current frame
+BLOCKS_AROUND = 1
+
+
+class DataClient:
+
+    def __init__(self, target, on_tracklet):
+        """on_tracklet is called in a background thread, with the list of
+        chunks of each received tracklet."""
+        self.channel = grpc.insecure_channel(target)
+        self.stub = rpc.DataServiceStub(self.channel)
+        self.on_tracklet = on_tracklet
+        self.requested_blocks = set()
+        # accessed by the fetch thread and the gRPC server threads
+        self.loaded_ids = set()
+        self.loaded_ids_lock = threading.Lock()
+        # the most recently requested block is fetched first
+        self.blocks = queue.LifoQueue()
+        threading.Thread(target=self.fetch_blocks, daemon=True).start()
+
+    def frame_changed(self, frame):
+        """Called in the main thread, requests the blocks around the
+        frame that were not requested before."""
+        block = frame // BLOCK_SIZE
+        for b in range(block - BLOCKS_AROUND, block + BLOCKS_AROUND + 1):
+            if b >= 0 and b not in self.requested_blocks:
+                self.requested_blocks.add(b)
+                self.blocks.put(b)
+
+    def mark_loaded(self, id):
+        """Called for tracklets pushed by Mastodon, after an edit."""
+        with self.loaded_ids_lock:
+            self.loaded_ids.add(id)
+
+    def forget(self, ids, all):
+        """Called for tracklets deleted by Mastodon, after an edit. Their
+        ids may be reused by new tracklets."""
+        with self.loaded_ids_lock:
+            if all:
+                self.loaded_ids.clear()
+            else:
+                self.loaded_ids.difference_update(ids)
+
+    def stop(self):
+        self.blocks.put(None)
+        self.channel.close()
+
+    def fetch_blocks(self):
+        while True:
+            block = self.blocks.get()
+            if block is None:
+                return
+            start = block * BLOCK_SIZE
+            with self.loaded_ids_lock:
+                exclude_ids = list(self.loaded_ids)
+            query = pb.TrackletQuery(
+                time_window=pb.TimeWindow(start=start,
+                                          end=start + BLOCK_SIZE - 1),
+                exclude_ids=exclude_ids)
+            try:
+                self.fetch(query)
+            except grpc.RpcError as error:
+                print("Failed to fetch tracklets from Mastodon: "
+                      + str(error))
+
+    def fetch(self, query):
+        chunks = []
+        for chunk in self.stub.getTracklets(query):
+            chunks.append(chunk)
+            if chunk.has_more:
+                continue
+            with self.loaded_ids_lock:
+                is_new = chunk.id not in self.loaded_ids
+                self.loaded_ids.add(chunk.id)
+            if is_new:
+                self.on_tracklet(chunks)
+            chunks = []
@@ -27,11 +27,16 @@
 # #L%
 ###
 import bpy
-import bidict
+import numpy
 import random
 import math
 
 from . import mb_utils
+from . import mastodon_blender_view_pb2 as pb
+
+
+# custom property of the spheres, that stores the tracklet id
+ID_PROPERTY = "mastodon_id"
 
 
 class ManySpheres:
@@ -40,7 +45,14 @@ class ManySpheres:
         self.collection = ManySpheres.init_collection()
         self.parent_object = ManySpheres.init_parent_object(self.collection)
         self.reference_sphere = ManySpheres.init_reference_sphere()
-        self.ids_to_spheres = bidict.bidict()
+        # spheres indexed by the tracklet id, None for unused ids. Mastodon
+        # assigns dense ids. Each sphere stores its id in a custom property.
+        self.spheres = []
+        # colors of tracklets that are not loaded yet, if Blender fetches
+        # the tracklets on demand
+        self.pending_colors = {}
+        # color runs of tracklets that are not loaded yet
+        self.pending_color_runs = {}
 
     @staticmethod
     def init_collection():
@@ -100,58 +112,163 @@ class ManySpheres:
         return reference_sphere
 
     def add_moving_spot(self, request):
+        coordinates, timepoints = get_coordinates_and_timepoints(request)
+        color = request.color if request.HasField('color') else None
+        self.add_tracklet(request.id, request.label, coordinates, timepoints,
+                          color)
+
+    def get_sphere(self, id):
+        if 0 <= id < len(self.spheres):
+            return self.spheres[id]
+        return None
+
+    def set_sphere(self, id, sphere):
+        if id >= len(self.spheres):
+            self.spheres.extend([None] * (id + 1 - len(self.spheres)))
+        self.spheres[id] = sphere
+
+    def add_tracklet(self, id, label, coordinates, timepoints, color=None):
+        sphere = self.get_sphere(id)
+        if sphere is not None:
+            # The tracklet was edited in Mastodon. Replace it in place,
+            # such that the color, size and selection are kept.
+            sphere.animation_data_clear()
+            sphere.name = label
+            if color is not None:
+                sphere.color = mb_utils.to_blender_color(color)
+            ManySpheres.animate(sphere, coordinates, timepoints)
+            return
         sphere = self.reference_sphere.copy()
-        sphere.name = request.label
+        sphere.name = label
         sphere.parent = self.parent_object
         sphere.scale = (0.1, 0.1, 0.1)
-        sphere.color = (random.random(), random.random(), random.random(), 1)
+        pending_color = self.pending_colors.pop(id, None)
+        if color is not None:
+            sphere.color = mb_utils.to_blender_color(color)
+        elif pending_color is not None:
+            sphere.color = mb_utils.to_blender_color(pending_color)
+        else:
+            sphere.color = (random.random(), random.random(), random.random(), 1)
+        sphere[ID_PROPERTY] = id
+        ManySpheres.animate(sphere, coordinates, timepoints)
+        color_runs = self.pending_color_runs.pop(id, None)
+        if color_runs is not None:
+            ManySpheres.animate_color(sphere, color_runs.frames,
+                                      color_runs.colors)
+        self.collection.objects.link(sphere)
+        self.set_sphere(id, sphere)
+
+    @staticmethod
+    def animate(sphere, coordinates, timepoints):
         mb_utils.hide_object(sphere, time=0)
-        mb_utils.show_object(sphere, time=request.timepoints[0])
+        mb_utils.show_object(sphere, time=timepoints[0])
 
         last_time = 0
-        for i in range(len(request.timepoints)):
-            x = request.coordinates[i * 3]
-            y = request.coordinates[i * 3 + 1]
-            z = request.coordinates[i * 3 + 2]
-            time = request.timepoints[i]
-            sphere.location = (x, y, z)
+        for location, time in zip(coordinates, timepoints):
+            sphere.location = location
             sphere.keyframe_insert(data_path="location", frame=time)
             last_time = time
 
         mb_utils.hide_object(sphere, time=last_time + 1)
-        self.collection.objects.link(sphere)
-        self.ids_to_spheres[request.id] = sphere
-        return
+
+    def delete_tracklets(self, request):
+        if request.all:
+            ids = range(len(self.spheres))
+            self.pending_colors.clear()
+            self.pending_color_runs.clear()
+        else:
+            ids = request.ids
+        for id in ids:
+            self.pending_colors.pop(id, None)
+            self.pending_color_runs.pop(id, None)
+            sphere = self.get_sphere(id)
+            if sphere is not None:
+                self.spheres[id] = None
+                bpy.data.objects.remove(sphere, do_unlink=True)
+        if request.all:
+            self.spheres = []
 
     def set_sphere_size(self, size):
         for sphere in self.parent_object.children:
             sphere.scale = [size, size, size]
 
     def set_spot_colors(self, request):
-        ids = request.ids
-        colors = request.colors
+        self.set_colors(request.ids, request.colors)
+
+    def set_colors(self, ids, colors):
         for i in range(len(ids)):
             id = ids[i]
             color = colors[i]
-            self.ids_to_spheres[id].color = mb_utils.to_blender_color(color)
+            sphere = self.get_sphere(id)
+            if sphere is None:
+                self.pending_colors[id] = color
+            else:
+                ManySpheres.clear_color_animation(sphere)
+                sphere.color = mb_utils.to_blender_color(color)
+
+    def set_color_runs(self, request):
+        for tracklet in request.tracklets:
+            sphere = self.get_sphere(tracklet.id)
+            if sphere is None:
+                self.pending_colors.pop(tracklet.id, None)
+                self.pending_color_runs[tracklet.id] = tracklet
+            else:
+                ManySpheres.animate_color(sphere, tracklet.frames,
+                                          tracklet.colors)
+
+    @staticmethod
+    def animate_color(sphere, frames, colors):
+        # Each run is a single keyframe with constant interpolation, such
+        # that the color changes exactly at the first spot of the run.
+        ManySpheres.clear_color_animation(sphere)
+        if len(colors) == 1:
+            sphere.color = mb_utils.to_blender_color(colors[0])
+            return
+        for frame, color in zip(frames, colors):
+            sphere.color = mb_utils.to_blender_color(color)
+            sphere.keyframe_insert(data_path="color", frame=frame)
+        for fcurve in sphere.animation_data.action.fcurves:
+            if fcurve.data_path == "color":
+                for keyframe in fcurve.keyframe_points:
+                    keyframe.interpolation = 'CONSTANT'
+
+    @staticmethod
+    def clear_color_animation(sphere):
+        animation_data = sphere.animation_data
+        if animation_data is None or animation_data.action is None:
+            return
+        fcurves = animation_data.action.fcurves
+        for fcurve in [f for f in fcurves if f.data_path == "color"]:
+            fcurves.remove(fcurve)
 
     def set_time_point(self, request):
         time_point = request.timepoint
         bpy.context.scene.frame_set(time_point)
 
     def get_active_spot_id(self):
-        try:
-            return self.ids_to_spheres.inverse[bpy.context.active_object]
-        except KeyError:
+        active_object = bpy.context.active_object
+        if active_object is None:
+            return None
+        id = active_object.get(ID_PROPERTY)
+        if id is None or self.get_sphere(id) != active_object:
             return None
+        return id
 
     def set_active_spot_id(self, request):
-        try:
-            id = request.id
-            sphere = self.ids_to_spheres[id]
-            bpy.context.view_layer.objects.active = sphere
-            for obj in bpy.context.selected_objects:
-                obj.select_set(False)
-            sphere.select_set(True)
-        except KeyError:
-            pass
+        sphere = self.get_sphere(request.id)
+        if sphere is None:
+            return
+        bpy.context.view_layer.objects.active = sphere
+        for obj in bpy.context.selected_objects:
+            obj.select_set(False)
+        sphere.select_set(True)
+
+
+def get_coordinates_and_timepoints(request):
+    if request.format == pb.PACKED_LITTLE_ENDIAN:
+        coordinates = numpy.frombuffer(request.packed_coordinates, dtype='<f4')
+        timepoints = numpy.frombuffer(request.packed_timepoints, dtype='<i4')
+    else:
+        coordinates = numpy.array(request.coordinates, dtype=numpy.float32)
+        timepoints = numpy.array(request.timepoints, dtype=numpy.int32)
+    return coordinates.reshape(-1, 3).tolist(), timepoints.tolist()
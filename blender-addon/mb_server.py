@@ -32,28 +32,75 @@ import sys
 import grpc
 import bpy
 import queue
+import threading
+from . import mb_data_client
 from . import mb_scene
+from . import mb_shared_file
 from . import mastodon_blender_view_pb2 as pb
 from . import mastodon_blender_view_pb2_grpc as rpc
 from . import mb_utils
 from functools import partial
 
 
+ADDON_VERSION = "0.2.0"
+
+# Mastodon uses the capabilities to choose the fastest supported protocol
+# features, see the Capability enum in the proto file.
+PROTOCOL_VERSION = 2
+CAPABILITIES = [
+    pb.PACKED_ARRAYS,
+    pb.STREAMING_UPLOAD,
+    pb.EVENT_PAYLOADS,
+    pb.SESSION,
+    pb.SHARED_FILE,
+    pb.FLOW_CONTROL,
+    pb.LIVE_UPDATES,
+    pb.TRACKLET_COLORS,
+    pb.COLOR_RUNS,
+]
+
+
 class ViewService(rpc.ViewServiceServicer):
 
-    def __init__(self, many_spheres):
+    def __init__(self, many_spheres, local=True):
         self.many_spheres = many_spheres
+        # the shared file RPCs read any path the client sends, they are
+        # only served if Mastodon runs on the same computer
+        self.local = local
         self.active_spot_id = None
         self.time_point = None
-        self.changes_queue = queue.Queue()
+        # one queue per subscriber, each subscriber receives every change
+        self.change_queues = []
+        self.change_queues_lock = threading.Lock()
         self.tag_set_list = []
         self.tag_set_index = -1
         self.sync_group_index = -1
+        self.pending_chunks = {}
+        self.pending_chunks_lock = threading.Lock()
+        # set if the tracklets are fetched on demand, it must know about
+        # the tracklets pushed by Mastodon
+        self.data_client = None
+        # response queues of the sessions that receive credit grants
+        self.credit_receivers = []
+        mb_utils.add_drain_listener(self.grant_credits)
         subscribe_to_active_object_change_event(self, self.active_object_changed_callback)
         bpy.app.handlers.frame_change_post.append(self.frame_change_callback)
 
     def getVersion(self, request, context):
-        return pb.VersionResponse(version="0.1.0")
+        return pb.VersionResponse(version=ADDON_VERSION,
+                                  protocol_version=PROTOCOL_VERSION,
+                                  capabilities=self.capabilities())
+
+    def capabilities(self):
+        if self.local:
+            return CAPABILITIES
+        return [c for c in CAPABILITIES if c != pb.SHARED_FILE]
+
+    def check_local(self, context):
+        if not self.local:
+            context.abort(grpc.StatusCode.PERMISSION_DENIED,
+                          "shared files are only supported for local"
+                          " connections")
 
     def closeAll(self, request, context):
         mb_utils.run_in_main_thread(
@@ -61,42 +108,178 @@ class ViewService(rpc.ViewServiceServicer):
         return pb.Empty()
 
     def addMovingSpot(self, request, context):
-        mb_utils.run_in_main_thread(
-            partial(self.many_spheres.add_moving_spot, request))
+        self.add_tracklet_chunk(request)
+        return pb.Empty()
+
+    def addMovingSpots(self, request_iterator, context):
+        for request in request_iterator:
+            self.add_tracklet_chunk(request)
+        return pb.Empty()
+
+    def add_tracklet_chunk(self, request):
+        with self.pending_chunks_lock:
+            chunks = self.pending_chunks.pop(request.id, [])
+            chunks.append(request)
+            if request.has_more:
+                self.pending_chunks[request.id] = chunks
+                return
+        tracklet = merge_chunks(chunks)
+        mb_utils.run_bulk_in_main_thread(
+            partial(self.many_spheres.add_moving_spot, tracklet),
+            cost=count_spots(tracklet))
+
+    def upsertTracklets(self, request_iterator, context):
+        # add_tracklet replaces tracklets with a known id in place
+        for request in request_iterator:
+            if self.data_client is not None and not request.has_more:
+                self.data_client.mark_loaded(request.id)
+            self.add_tracklet_chunk(request)
+        return pb.Empty()
+
+    def deleteTracklets(self, request, context):
+        if self.data_client is not None:
+            self.data_client.forget(request.ids, request.all)
+        mb_utils.run_bulk_in_main_thread(
+            partial(self.many_spheres.delete_tracklets, request))
+        return pb.Empty()
+
+    def addMovingSpotsFromFile(self, request, context):
+        self.check_local(context)
+        for tracklet in mb_shared_file.read_tracklets(request):
+            mb_utils.run_bulk_in_main_thread(
+                partial(self.many_spheres.add_tracklet, *tracklet))
+        return pb.Empty()
+
+    def setSpotColorsFromFile(self, request, context):
+        self.check_local(context)
+        ids, colors = mb_shared_file.read_colors(request)
+        mb_utils.run_bulk_in_main_thread(
+            partial(self.many_spheres.set_colors, ids, colors))
         return pb.Empty()
 
     def setSpotColors(self, request, context):
-        mb_utils.run_in_main_thread(
-            partial(self.many_spheres.set_spot_colors, request))
+        mb_utils.run_bulk_in_main_thread(
+            partial(self.many_spheres.set_spot_colors, request),
+            cost=len(request.ids))
+        return pb.Empty()
+
+    def setColorRuns(self, request, context):
+        mb_utils.run_bulk_in_main_thread(
+            partial(self.many_spheres.set_color_runs, request),
+            cost=sum(len(tracklet.colors) for tracklet in request.tracklets))
         return pb.Empty()
 
     def setTimePoint(self, request, context):
         self.time_point = request.timepoint
-        mb_utils.run_in_main_thread(
-            partial(self.many_spheres.set_time_point, request))
+        # Over a slow connection, several time points may be queued before
+        # the main thread runs. Each queued call applies the latest time
+        # point. Applying the older ones would send change messages that
+        # move Mastodon back in time.
+        mb_utils.run_in_main_thread(self.apply_time_point)
         return pb.Empty()
 
+    def apply_time_point(self):
+        self.many_spheres.set_time_point(
+            pb.SetTimePointRequest(timepoint=self.time_point))
+
     def subscribeToChange(self, request, context):
+        changes = self.add_change_queue()
+        try:
+            while context.is_active():
+                try:
+                    yield changes.get(timeout=1)
+                except queue.Empty:
+                    pass
+        finally:
+            self.remove_change_queue(changes)
+
+    def add_change_queue(self):
+        changes = queue.Queue()
+        with self.change_queues_lock:
+            self.change_queues.append(changes)
+        return changes
+
+    def remove_change_queue(self, changes):
+        with self.change_queues_lock:
+            self.change_queues.remove(changes)
+
+    def publish_change(self, change):
+        with self.change_queues_lock:
+            for changes in self.change_queues:
+                changes.put(change)
+
+    def session(self, request_iterator, context):
+        responses = queue.Queue()
+        threading.Thread(target=self.read_session_requests, daemon=True,
+                         args=(request_iterator, responses, context)).start()
         while context.is_active():
             try:
-                change_id = self.changes_queue.get(timeout=1)
-                if change_id == None:
-                    change_id = 0xffffffff
-                yield pb.ChangeMessage(id=change_id)
+                response = responses.get(timeout=1)
             except queue.Empty:
-                pass
+                continue
+            if response is None:
+                break
+            yield response
+        if responses in self.credit_receivers:
+            self.credit_receivers.remove(responses)
+
+    def read_session_requests(self, request_iterator, responses, context):
+        try:
+            for message in request_iterator:
+                self.handle_session_message(message, responses, context)
+        finally:
+            responses.put(None)
+
+    def handle_session_message(self, message, responses, context):
+        kind = message.WhichOneof('request')
+        if kind == 'subscribe_to_change':
+            threading.Thread(target=self.forward_changes, daemon=True,
+                             args=(responses, context)).start()
+            return
+        if kind == 'enable_flow_control':
+            self.credit_receivers.append(responses)
+            return
+        if kind not in SESSION_HANDLERS:
+            print("Unexpected session message: " + str(kind))
+            return
+        handler_name, response_field = SESSION_HANDLERS[kind]
+        handler = getattr(self, handler_name)
+        response = handler(getattr(message, kind), context)
+        if response_field is not None:
+            server_message = pb.ServerMessage(request_id=message.request_id)
+            getattr(server_message, response_field).CopyFrom(response)
+            responses.put(server_message)
+
+    def grant_credits(self, items):
+        for responses in list(self.credit_receivers):
+            responses.put(pb.ServerMessage(credit=pb.CreditGrant(items=items)))
+
+    def forward_changes(self, responses, context):
+        changes = self.add_change_queue()
+        try:
+            while context.is_active():
+                try:
+                    change = changes.get(timeout=1)
+                    responses.put(pb.ServerMessage(change=change))
+                except queue.Empty:
+                    pass
+        finally:
+            self.remove_change_queue(changes)
 
     def active_object_changed_callback(self):
         active_spot_id = self.many_spheres.get_active_spot_id()
         if self.active_spot_id != active_spot_id:
             self.active_spot_id = active_spot_id
-            self.changes_queue.put(pb.ACTIVE_SPOT)
+            spot_id = -1 if active_spot_id is None else active_spot_id
+            self.publish_change(
+                pb.ChangeMessage(id=pb.ACTIVE_SPOT, spot_id=spot_id))
 
     def frame_change_callback(self, scene, _):
         time_point = scene.frame_current
         if self.time_point != time_point:
             self.time_point = time_point
-            self.changes_queue.put(pb.TIME_POINT)
+            self.publish_change(
+                pb.ChangeMessage(id=pb.TIME_POINT, timepoint=time_point))
 
     def setActiveSpot(self, request, context):
         mb_utils.run_in_main_thread(
@@ -111,7 +294,7 @@ class ViewService(rpc.ViewServiceServicer):
         return pb.TimePointResponse(timePoint=timepoint)
 
     def update_colors(self):
-        self.changes_queue.put(pb.UPDATE_COLORS_REQUEST)
+        self.publish_change(pb.ChangeMessage(id=pb.UPDATE_COLORS_REQUEST))
 
     def setTagSetList(self, request, context):
         self.tag_set_list = request.tag_set_names
@@ -122,14 +305,53 @@ class ViewService(rpc.ViewServiceServicer):
 
     def set_tag_set_index(self, tag_set_index):
         self.tag_set_index = tag_set_index
-        self.changes_queue.put(pb.SELECTED_TAG_SET)
+        self.publish_change(pb.ChangeMessage(id=pb.SELECTED_TAG_SET,
+                                             tag_set_index=tag_set_index))
 
     def getSelectedSyncGroup(self, request, context):
         return pb.SelectedSyncGroupResponse(index=self.sync_group_index)
 
     def set_sync_group(self, index):
         self.sync_group_index = index
-        self.changes_queue.put(pb.SYNC_GROUP)
+        self.publish_change(pb.ChangeMessage(id=pb.SYNC_GROUP,
+                                             sync_group_index=index))
+
+
+# maps the request field of a ClientMessage to the method that handles it,
+# and to the response field of the ServerMessage (None if no response)
+SESSION_HANDLERS = {
+    'get_version': ('getVersion', 'version'),
+    'close_all': ('closeAll', None),
+    'add_moving_spot': ('addMovingSpot', None),
+    'set_spot_colors': ('setSpotColors', None),
+    'set_time_point': ('setTimePoint', None),
+    'get_time_point': ('getTimePoint', 'time_point'),
+    'set_active_spot': ('setActiveSpot', None),
+    'get_active_spot': ('getActiveSpot', 'active_spot'),
+    'set_tag_set_list': ('setTagSetList', None),
+    'get_selected_tag_set': ('getSelectedTagSet', 'selected_tag_set'),
+    'get_selected_sync_group': ('getSelectedSyncGroup', 'selected_sync_group'),
+}
+
+
+def merge_chunks(chunks):
+    if len(chunks) == 1:
+        return chunks[0]
+    merged = pb.AddMovingSpotRequest()
+    for chunk in chunks:
+        merged.MergeFrom(chunk)
+    # MergeFrom overwrites bytes fields, instead of concatenating them
+    merged.packed_coordinates = b''.join(
+        chunk.packed_coordinates for chunk in chunks)
+    merged.packed_timepoints = b''.join(
+        chunk.packed_timepoints for chunk in chunks)
+    return merged
+
+
+def count_spots(request):
+    if request.format == pb.PACKED_LITTLE_ENDIAN:
+        return len(request.packed_timepoints) // 4
+    return len(request.timepoints)
 
 
 def subscribe_to_active_object_change_event(owner, callback):
@@ -141,38 +363,107 @@ def subscribe_to_active_object_change_event(owner, callback):
     )
 
 
+# Mastodon sends keepalive pings every few seconds, also while no call is
+# active, to detect a lost connection quickly. By default the server would
+# reject pings this frequent and close the connection.
+SERVER_OPTIONS = [
+    ('grpc.keepalive_permit_without_calls', 1),
+    ('grpc.http2.min_ping_interval_without_data_ms', 5000),
+    ('grpc.http2.max_pings_without_data', 0),
+    # Mastodon optionally compresses the uploads with gzip or deflate.
+    # Accept all algorithms, even if the default changes.
+    ('grpc.compression_enabled_algorithms_bitset', 0b111),
+]
+
+
 class MastodonBlenderServer:
 
     def __init__(self):
         self.many_spheres = mb_scene.ManySpheres()
-        self.server = grpc.server(futures.ThreadPoolExecutor(max_workers=10))
-        self.view_service = ViewService(self.many_spheres)
+        self.server = grpc.server(futures.ThreadPoolExecutor(max_workers=10),
+                                  options=SERVER_OPTIONS)
+        self.view_service = ViewService(self.many_spheres,
+                                        local="--mastodon-listen" not in sys.argv)
         rpc.add_ViewServiceServicer_to_server(self.view_service, self.server)
         try:
-            port = get_port_from_command_line()
-            self.server.add_insecure_port('localhost:' + str(port))
-        except ValueError as error:
+            address = get_address_from_command_line()
+            credentials = get_server_credentials_from_command_line()
+            if credentials is None:
+                self.server.add_insecure_port(address)
+            else:
+                self.server.add_secure_port(address, credentials)
+        except (ValueError, OSError) as error:
             print(error)
         self.server.start()
+        self.data_client = None
+        if "--mastodon-data" in sys.argv:
+            self.start_data_client(get_argument(sys.argv, "--mastodon-data"))
+
+    def start_data_client(self, target):
+        # The tracklets are fetched from Mastodon on demand, instead of
+        # being pushed by Mastodon.
+        self.data_client = mb_data_client.DataClient(target,
+                                                     self.add_fetched_tracklet)
+        self.view_service.data_client = self.data_client
+        bpy.app.handlers.frame_change_post.append(self.data_frame_change)
+        self.data_client.frame_changed(bpy.context.scene.frame_current)
+
+    def add_fetched_tracklet(self, chunks):
+        mb_utils.run_bulk_in_main_thread(
+            partial(self.many_spheres.add_moving_spot, merge_chunks(chunks)))
+
+    def data_frame_change(self, scene, _):
+        self.data_client.frame_changed(scene.frame_current)
 
     def stop(self):
+        if self.data_client is not None:
+            bpy.app.handlers.frame_change_post.remove(self.data_frame_change)
+            self.data_client.stop()
+        mb_utils.remove_drain_listener(self.view_service.grant_credits)
         self.server.stop(grace=2)
 
 
 mastodon_blender_server = None
 
 
-def get_port_from_command_line():
+def get_address_from_command_line():
+    argv = sys.argv
+    if "--mastodon-listen" in argv:
+        # Serve on the network, for Mastodon running on another computer,
+        # e.g. "0.0.0.0:50051".
+        return get_argument(argv, "--mastodon-listen")
+    if "--mastodon-socket" in argv:
+        return 'unix:' + get_argument(argv, "--mastodon-socket")
+    if "--mastodon-port" in argv:
+        try:
+            return 'localhost:' + str(int(get_argument(argv, "--mastodon-port")))
+        except ValueError:
+            raise ValueError("command line argument --mastodon-port"
+                             " must be followed by a integer")
+    raise ValueError("command line argument --mastodon-socket,"
+                     " --mastodon-port or --mastodon-listen is missing")
+
+
+def get_server_credentials_from_command_line():
     argv = sys.argv
-    try:
-        index = argv.index("--mastodon-port")
-    except ValueError:
-        raise ValueError("command line argument --mastodon-port is missing")
-    try:
-        return int(argv[index + 1])
-    except (IndexError, ValueError):
-        raise ValueError("command line argument --mastodon-port"
-                         " must be followed by a integer")
+    if "--mastodon-tls-cert" not in argv:
+        return None
+    if "--mastodon-tls-key" not in argv:
+        raise ValueError("command line argument --mastodon-tls-key"
+                         " is missing")
+    with open(get_argument(argv, "--mastodon-tls-key"), 'rb') as file:
+        private_key = file.read()
+    with open(get_argument(argv, "--mastodon-tls-cert"), 'rb') as file:
+        certificate_chain = file.read()
+    return grpc.ssl_server_credentials([(private_key, certificate_chain)])
+
+
+def get_argument(argv, name):
+    index = argv.index(name)
+    if index + 1 >= len(argv):
+        raise ValueError("command line argument " + name
+                         + " must be followed by a value")
+    return argv[index + 1]
 
 
 def register():
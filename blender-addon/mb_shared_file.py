@@ -0,0 +1,81 @@
+###
+# #%L
+# A Mastodon plugin data allows to show the embryo in Blender.
+# %%
+# Copyright (C) 2022 Matthias Arzt
+# %%
+# Redistribution and use in source and binary forms, with or without
+# modification, are permitted provided that the following conditions are met:
+# 
+# 1. Redistributions of source code must retain the above copyright notice,
+#    this list of conditions and the following disclaimer.
+# 2. Redistributions in binary form must reproduce the above copyright notice,
+#    this list of conditions and the following disclaimer in the documentation
+#    and/or other materials provided with the distribution.
+# 
+# THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+# AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+# IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+# ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+# LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+# CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+# SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+# INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+# CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+# ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+# POSSIBILITY OF SUCH DAMAGE.
+# #L%
+###
+import numpy
+
+# Reads the files written by SharedFile.java. The file is memory mapped,
+# and the values are copied into lists before the functions return,
+# because Mastodon deletes the file once the request is answered.
+
+MAGIC = b'MBVF'
+VERSION = 1
+KIND_TRACKLETS = 1
+KIND_COLORS = 2
+HEADER_SIZE = 32
+
+
+def read_tracklets(request):
+    """Returns a list of (id, label, coordinates, timepoints) tuples."""
+    data = open_file(request, KIND_TRACKLETS)
+    count, spot_count = read_counts(data)
+    table_end = HEADER_SIZE + count * 5 * 4
+    coordinates_end = table_end + spot_count * 3 * 4
+    timepoints_end = coordinates_end + spot_count * 4
+    table = data[HEADER_SIZE:table_end].view('<i4').reshape(-1, 5)
+    coordinates = data[table_end:coordinates_end].view('<f4').reshape(-1, 3)
+    timepoints = data[coordinates_end:timepoints_end].view('<i4')
+    labels = bytes(data[timepoints_end:])
+    tracklets = []
+    for id, first, n, label_offset, label_length in table.tolist():
+        label = labels[label_offset:label_offset + label_length].decode('utf-8')
+        tracklets.append((id, label,
+                          coordinates[first:first + n].tolist(),
+                          timepoints[first:first + n].tolist()))
+    return tracklets
+
+
+def read_colors(request):
+    """Returns the ids and colors as two lists."""
+    data = open_file(request, KIND_COLORS)
+    count, _ = read_counts(data)
+    table = data[HEADER_SIZE:HEADER_SIZE + count * 2 * 4].view('<u4').reshape(-1, 2)
+    return table[:, 0].tolist(), table[:, 1].tolist()
+
+
+def open_file(request, kind):
+    data = numpy.memmap(request.path, dtype=numpy.uint8, mode='r',
+                        offset=request.offset, shape=(request.length,))
+    header = data[:HEADER_SIZE].view('<i4')
+    if bytes(data[:4]) != MAGIC or header[1] != VERSION or header[2] != kind:
+        raise ValueError("unexpected content in shared file " + request.path)
+    return data
+
+
+def read_counts(data):
+    header = data[:HEADER_SIZE].view('<i4')
+    return int(header[3]), int(header[4])
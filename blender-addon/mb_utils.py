@@ -28,37 +28,105 @@
 ###
 import bpy
 import queue
+import threading
+import time
+import traceback
 
 
 # Implement run in main thread
 
 class MainThreadQueue:
+    """Two lanes of functions that are executed in Blender's main thread.
+    Interactive functions (time point, active spot, ...) always run first.
+    Bulk functions (tracklets, colors) only get a bounded time slice per
+    timer tick, such that Blender stays responsive during large uploads."""
+
+    # maximum time in seconds spent on bulk functions per timer tick
+    BULK_TIME_SLICE = 0.02
 
     def __init__(self):
-        self.execution_queue = queue.Queue()
+        self.interactive_queue = queue.Queue()
+        self.bulk_queue = queue.Queue()
+        self.lock = threading.Lock()
         self.waiting = False
-
-    def enqueue(self, function):
-        self.execution_queue.put(function)
-        if not self.waiting:
+        self.drain_listeners = []
+
+    def enqueue(self, function, cost=0, bulk=False):
+        lane = self.bulk_queue if bulk else self.interactive_queue
+        lane.put((function, cost))
+        with self.lock:
+            if self.waiting:
+                return
             self.waiting = True
-            bpy.app.timers.register(self.execute_queued_functions)
+        bpy.app.timers.register(self.execute_queued_functions)
 
     def execute_queued_functions(self):
-        while not self.execution_queue.empty():
-            function = self.execution_queue.get()
-            function()
-        self.waiting = False
-        return None
+        try:
+            self.execute_time_slice()
+        except Exception:
+            traceback.print_exc()
+        # a failing function must not stop the queue from being drained
+        with self.lock:
+            if self.interactive_queue.empty() and self.bulk_queue.empty():
+                self.waiting = False
+                return None
+        # call again as soon as Blender has handled its events
+        return 0.0
+
+    def execute_time_slice(self):
+        self.execute_interactive_functions()
+        drained = 0
+        start = time.monotonic()
+        while not self.bulk_queue.empty() \
+                and time.monotonic() - start < self.BULK_TIME_SLICE:
+            function, cost = self.bulk_queue.get()
+            call(function)
+            drained += cost
+            self.execute_interactive_functions()
+        if drained > 0:
+            self.report_drained(drained)
+
+    def execute_interactive_functions(self):
+        while not self.interactive_queue.empty():
+            function, _ = self.interactive_queue.get()
+            call(function)
+
+    def report_drained(self, cost):
+        for listener in self.drain_listeners:
+            listener(cost)
+
+
+def call(function):
+    try:
+        function()
+    except Exception:
+        traceback.print_exc()
 
 
 main_thread_queue = MainThreadQueue()
 
 
 def run_in_main_thread(function):
+    """Runs the function in Blender's main thread, before any pending bulk
+    functions."""
     main_thread_queue.enqueue(function)
 
 
+def run_bulk_in_main_thread(function, cost=0):
+    """Runs the function in Blender's main thread, after all interactive
+    functions. The cost is reported to the drain listeners once the
+    function was executed."""
+    main_thread_queue.enqueue(function, cost, bulk=True)
+
+
+def add_drain_listener(listener):
+    main_thread_queue.drain_listeners.append(listener)
+
+
+def remove_drain_listener(listener):
+    main_thread_queue.drain_listeners.remove(listener)
+
+
 def show_object(obj, time):
     insert_visibility_keyframe(obj, time=time, visible=True)
 
@@ -0,0 +1,249 @@
+/*-
+ * #%L
+ * A Mastodon plugin data allows to show the embryo in Blender.
+ * %%
+ * Copyright (C) 2022 - 2025 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.blender;
+
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.netty.GrpcSslContexts;
+import io.grpc.netty.NettyChannelBuilder;
+import io.grpc.netty.NettyServerBuilder;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollDomainSocketChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerDomainSocketChannel;
+import io.netty.channel.unix.DomainSocketAddress;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.mastodon.blender.setup.StartBlender;
+
+import javax.net.ssl.SSLException;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Address at which the Mastodon addon in Blender serves the view service.
+ * <p>
+ * On Linux a Unix domain socket is used. This avoids the TCP stack on the
+ * local link, and there is no race between picking a free port and Blender
+ * binding to it. If Netty's native epoll transport is not available, for
+ * example on Windows and macOS, a TCP port on localhost is used instead.
+ * <p>
+ * Alternatively, the address can point to a Blender that already runs on
+ * another computer, see {@link #remote}. The connection is optionally
+ * secured with TLS.
+ */
+public class BlenderAddress
+{
+	private final Path socketPath;
+
+	private final String host;
+
+	private final int port;
+
+	private final boolean tls;
+
+	private final Path trustedCertificate;
+
+	private BlenderAddress( Path socketPath, String host, int port, boolean tls, Path trustedCertificate )
+	{
+		this.socketPath = socketPath;
+		this.host = host;
+		this.port = port;
+		this.tls = tls;
+		this.trustedCertificate = trustedCertificate;
+	}
+
+	/**
+	 * Returns a new address for a Blender instance that is started on this
+	 * computer. This is a new Unix domain socket if supported, and a free
+	 * TCP port otherwise.
+	 */
+	public static BlenderAddress createLocal()
+	{
+		if ( Epoll.isAvailable() )
+			return unixSocket( newSocketPath() );
+		return tcp( StartBlender.getFreePort() );
+	}
+
+	public static BlenderAddress tcp( int port )
+	{
+		return new BlenderAddress( null, null, port, false, null );
+	}
+
+	public static BlenderAddress unixSocket( Path socketPath )
+	{
+		return new BlenderAddress( socketPath, null, -1, false, null );
+	}
+
+	/**
+	 * Address of a Blender that is already running, possibly on another
+	 * computer.
+	 *
+	 * @param tls                whether the connection uses TLS.
+	 * @param trustedCertificate certificate (PEM) that the server's
+	 *                           certificate is checked against, or null to
+	 *                           use the system's trusted certificates.
+	 */
+	public static BlenderAddress remote( String host, int port, boolean tls, Path trustedCertificate )
+	{
+		return new BlenderAddress( null, host, port, tls, trustedCertificate );
+	}
+
+	/**
+	 * @return true if Blender runs on this computer and is started by
+	 * Mastodon. Only then, Blender can read shared files, and connect back
+	 * to services hosted by Mastodon.
+	 */
+	public boolean isLocal()
+	{
+		return host == null;
+	}
+
+	public boolean isUnixSocket()
+	{
+		return socketPath != null;
+	}
+
+	/**
+	 * @return path of the Unix domain socket, null if TCP is used.
+	 */
+	public Path getSocketPath()
+	{
+		return socketPath;
+	}
+
+	/**
+	 * @return TCP port, -1 if a Unix domain socket is used.
+	 */
+	public int getPort()
+	{
+		return port;
+	}
+
+	/**
+	 * Returns the command line arguments that tell the Blender addon where
+	 * to serve the view service.
+	 */
+	public List< String > commandLineArguments()
+	{
+		if ( !isLocal() )
+			throw new IllegalStateException( "Blender is not started by Mastodon for the remote address " + this );
+		if ( isUnixSocket() )
+			return Arrays.asList( "--mastodon-socket", socketPath.toString() );
+		return Arrays.asList( "--mastodon-port", Integer.toString( port ) );
+	}
+
+	public ManagedChannelBuilder< ? > channelBuilder()
+	{
+		if ( !isLocal() )
+			return remoteChannelBuilder();
+		if ( !isUnixSocket() )
+			return ManagedChannelBuilder.forTarget( ViewServiceClient.URL + port ).usePlaintext();
+		return NettyChannelBuilder.forAddress( new DomainSocketAddress( socketPath.toString() ) )
+				.eventLoopGroup( EpollEventLoop.GROUP )
+				.channelType( EpollDomainSocketChannel.class )
+				.usePlaintext();
+	}
+
+	private ManagedChannelBuilder< ? > remoteChannelBuilder()
+	{
+		NettyChannelBuilder builder = NettyChannelBuilder.forAddress( host, port );
+		if ( !tls )
+			return builder.usePlaintext();
+		if ( trustedCertificate == null )
+			return builder.useTransportSecurity();
+		try
+		{
+			return builder.sslContext( GrpcSslContexts.forClient().trustManager( trustedCertificate.toFile() ).build() );
+		}
+		catch ( SSLException e )
+		{
+			throw new RuntimeException( "Failed to load the certificate: " + trustedCertificate, e );
+		}
+	}
+
+	/**
+	 * Returns a builder for a server that listens on this address. Used
+	 * for the services that Mastodon provides to Blender.
+	 */
+	public NettyServerBuilder serverBuilder()
+	{
+		if ( !isUnixSocket() )
+			return NettyServerBuilder.forAddress( new InetSocketAddress( "localhost", port ) );
+		return NettyServerBuilder.forAddress( new DomainSocketAddress( socketPath.toString() ) )
+				.channelType( EpollServerDomainSocketChannel.class )
+				.bossEventLoopGroup( EpollEventLoop.GROUP )
+				.workerEventLoopGroup( EpollEventLoop.GROUP );
+	}
+
+	/**
+	 * Returns the address as gRPC target, e.g. "unix:/tmp/view.sock" or
+	 * "localhost:50051", as understood by the Python gRPC library.
+	 */
+	@Override
+	public String toString()
+	{
+		if ( !isLocal() )
+			return host + ":" + port;
+		return isUnixSocket() ? "unix:" + socketPath : ViewServiceClient.URL + port;
+	}
+
+	private static Path newSocketPath()
+	{
+		try
+		{
+			// Socket paths are limited to about 100 characters, therefore
+			// a short name in the temp directory is used.
+			Path directory = Files.createTempDirectory( "mastodon-blender" );
+			Path socket = directory.resolve( "view.sock" );
+			directory.toFile().deleteOnExit();
+			socket.toFile().deleteOnExit();
+			return socket;
+		}
+		catch ( IOException e )
+		{
+			throw new RuntimeException( e );
+		}
+	}
+
+	/**
+	 * Holds the event loop shared by all Unix domain socket channels.
+	 * It is only created when needed, because it requires the native
+	 * epoll library.
+	 */
+	private static class EpollEventLoop
+	{
+		private static final EventLoopGroup GROUP =
+				new EpollEventLoopGroup( 1, new DefaultThreadFactory( "mastodon-blender-uds", true ) );
+	}
+}
@@ -29,11 +29,14 @@
 package org.mastodon.blender;
 
 import javax.swing.SwingUtilities;
+import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.util.Pair;
 
+import org.mastodon.blender.setup.BlenderSettingsService;
 import org.mastodon.blender.utils.BranchGraphUtils;
 import org.mastodon.collection.RefList;
-import org.mastodon.graph.GraphIdBimap;
+import org.mastodon.collection.RefSet;
+import org.mastodon.graph.GraphChangeListener;
 import org.mastodon.grouping.GroupHandle;
 import org.mastodon.mamut.ProjectModel;
 import org.mastodon.mamut.model.Link;
@@ -50,8 +53,17 @@ import org.mastodon.model.TimepointModel;
 import org.mastodon.model.tag.ObjTagMap;
 import org.mastodon.model.tag.TagSetModel;
 import org.mastodon.model.tag.TagSetStructure;
+import org.mastodon.spatial.VertexPositionListener;
+import org.scijava.log.LogService;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.ToIntFunction;
 
 /**
@@ -59,11 +71,29 @@ import java.util.function.ToIntFunction;
  */
 public class BlenderController
 {
+	/**
+	 * Minimum time between two batched updates of Blender, while the model
+	 * is edited.
+	 */
+	private static final long SYNC_INTERVAL_MILLIS = 50;
 
-	private final ViewServiceClient client;
+	/**
+	 * Replaced by a new client, when Blender is restarted after a crash.
+	 */
+	private volatile ViewServiceClient client;
+
+	/**
+	 * True while Blender is restarted. Changes are not sent in the
+	 * meantime, the full state is sent after the restart.
+	 */
+	private volatile boolean resuming = false;
+
+	private volatile boolean closed = false;
 
 	private final ProjectModel projectModel;
 
+	private final LogService log;
+
 	private final Model model;
 
 	private final GroupHandle groupHandle;
@@ -72,13 +102,85 @@ public class BlenderController
 
 	private final TimepointModel timePointModel;
 
+	private final int timeScalingFactor;
+
+	private final boolean autoResume;
+
+	/**
+	 * Serves the tracklets to Blender, if they are loaded on demand. Null
+	 * if the whole graph is sent to Blender.
+	 */
+	private final TrackletDataService dataService;
+
+	private final List< String > addonArguments;
+
+	/**
+	 * Ids of the tracklets in Blender, shared by the client, the data
+	 * service and the change tracker. Kept when Blender is restarted.
+	 */
+	private final TrackletIdRegistry trackletIds = new TrackletIdRegistry();
+
 	private final FocusListener focusListener = this::onFocusModelEvent;
 
 	private final TimepointListener timepointListener = this::onTimepointModelEvent;
 
-	private final TagSetModel.TagSetModelListener tagSetModelListener = this::sendTagSetList;
+	private final TagSetModel.TagSetModelListener tagSetModelListener = this::onTagSetStructureChanged;
+
+	/**
+	 * Records the edits of the graph and the changed tags. The edits are
+	 * sent to Blender in the background, see {@link #syncGraph}.
+	 */
+	private final TrackletChangeTracker changeTracker;
+
+	/**
+	 * True if the addon supports live updates of the tracklets. Otherwise
+	 * only the colors are updated.
+	 */
+	private final boolean liveUpdates;
+
+	/**
+	 * True if each spot is shown in its own color, and the addon supports
+	 * it. Otherwise the first spot determines the color of a tracklet.
+	 */
+	private final boolean perSpotColors;
 
-	private TagSetStructure.TagSet tagSet;
+	private final GraphChangeListener graphChangeListener = this::onGraphChanged;
+
+	private final VertexPositionListener< Spot > vertexPositionListener = spot -> onGraphChanged();
+
+	private final Runnable graphSync = this::syncGraph;
+
+	private final Runnable tagSetSync = this::syncTagSets;
+
+	private final Runnable allColorsSync = this::sendColors;
+
+	private final Runnable colorSync = this::syncColors;
+
+	/**
+	 * Runs the sync tasks in the background, such that a burst of edits
+	 * results in a single update of Blender.
+	 */
+	private final SyncScheduler syncScheduler = new SyncScheduler( "mastodon-blender-sync", SYNC_INTERVAL_MILLIS,
+			graphSync, tagSetSync, allColorsSync, colorSync );
+
+	private volatile TagSetStructure.TagSet tagSet;
+
+	/**
+	 * Index of the tag set selected in Blender, -1 if none.
+	 */
+	private volatile int tagSetIndex = -1;
+
+	/**
+	 * The tags of all tag sets, and the listeners subscribed to them.
+	 */
+	private final Map< ObjTagMap< Spot, TagSetStructure.Tag >, ObjTagMap.TagChangeListener< Spot > > tagChangeListeners = new HashMap<>();
+
+	/**
+	 * The colors of all tracklets, per tag set. The key null stands for "no
+	 * tag set selected". Tag changes are applied to the cached colors, the
+	 * cache is cleared when tracklets are added or removed.
+	 */
+	private final Map< TagSetStructure.TagSet, TrackletColors > colorCache = new HashMap<>();
 
 	private int knownTimepoint = 0;
 
@@ -87,19 +189,42 @@ public class BlenderController
 	public BlenderController( ProjectModel projectModel, int timeScalingFactor )
 	{
 		this.projectModel = projectModel;
+		this.log = projectModel.getContext().service( LogService.class );
 		this.model = projectModel.getModel();
 		this.groupHandle = projectModel.getGroupManager().createGroupHandle();
 		this.groupHandle.setGroupId( -1 );
 		NavigationHandler<Spot, Link> navigationModel = groupHandle.getModel( projectModel.NAVIGATION );
 		this.focusModel = new AutoNavigateFocusModel<>( projectModel.getFocusModel(), navigationModel );
 		this.timePointModel = groupHandle.getModel( projectModel.TIMEPOINT );
-		this.client = new ViewServiceClient( projectModel.getContext(), new ViewServiceListener(), timeScalingFactor );
-		sendCoordinates();
-		sendColors();
-		sendTagSetList();
-		triggerRepaint();
-		client.subscribeToChangeEvents();
-		subscribeListeners();
+		this.timeScalingFactor = timeScalingFactor;
+		BlenderSettingsService settings = projectModel.getContext().service( BlenderSettingsService.class );
+		this.autoResume = settings.isAutoResume();
+		// A remote Blender can't connect back to the local data service.
+		boolean loadOnDemand = settings.isLoadOnDemand() && settings.getRemoteAddress() == null;
+		this.dataService = loadOnDemand ? startDataService( projectModel, timeScalingFactor, trackletIds ) : null;
+		this.addonArguments = dataService != null ? dataService.addonArguments() : Collections.emptyList();
+		this.client = newClient();
+		this.liveUpdates = client.supportsLiveUpdates();
+		this.perSpotColors = settings.isPerSpotColors() && client.supportsColorRuns();
+		this.changeTracker = new TrackletChangeTracker( model.getGraph(), trackletIds );
+		model.getGraph().addGraphListener( changeTracker );
+		if ( liveUpdates )
+			model.getGraph().addVertexPositionListener( changeTracker );
+		try
+		{
+			sendGraph();
+			triggerRepaint();
+			client.subscribeToChangeEvents();
+			subscribeListeners();
+		}
+		catch ( RuntimeException e )
+		{
+			// don't leave the listeners and the connection behind
+			close();
+			throw e;
+		}
+		// edits made while the graph was sent
+		syncScheduler.markDirty( graphSync );
 		//MastodonUtils.logMastodonEvents(projectModel);
 	}
 
@@ -108,6 +233,12 @@ public class BlenderController
 		focusModel.listeners().add( focusListener );
 		timePointModel.listeners().add( timepointListener );
 		model.getTagSetModel().listeners().add( tagSetModelListener );
+		subscribeToTags( model.getTagSetModel().getTagSetStructure().getTagSets() );
+		model.getGraph().addGraphChangeListener( graphChangeListener );
+		// spots are moved without a graph change event, e.g. while
+		// dragging them in BigDataViewer
+		if ( liveUpdates )
+			model.getGraph().addVertexPositionListener( vertexPositionListener );
 	}
 
 	private void unsubscribeListeners()
@@ -115,6 +246,311 @@ public class BlenderController
 		focusModel.listeners().remove( focusListener );
 		timePointModel.listeners().remove( timepointListener );
 		model.getTagSetModel().listeners().remove( tagSetModelListener );
+		model.getGraph().removeGraphChangeListener( graphChangeListener );
+		model.getGraph().removeVertexPositionListener( vertexPositionListener );
+		model.getGraph().removeGraphListener( changeTracker );
+		model.getGraph().removeVertexPositionListener( changeTracker );
+		subscribeToTags( Collections.emptyList() );
+	}
+
+	/**
+	 * Disconnects from Blender. Removes all listeners, detaches from the
+	 * sync group and releases the connection. Calling it again has no
+	 * effect.
+	 */
+	public synchronized void close()
+	{
+		if ( closed )
+			return;
+		closed = true;
+		unsubscribeListeners();
+		groupHandle.setGroupId( -1 );
+		syncScheduler.shutdown();
+		log.debug( "Synchronized Blender: " + syncScheduler + "." );
+		client.close();
+		if ( dataService != null )
+			dataService.shutdown();
+	}
+
+	private static TrackletDataService startDataService( ProjectModel projectModel, int timeScalingFactor, TrackletIdRegistry trackletIds )
+	{
+		TrackletDataService dataService = new TrackletDataService( projectModel, timeScalingFactor, trackletIds );
+		try
+		{
+			dataService.start();
+		}
+		catch ( IOException e )
+		{
+			throw new UncheckedIOException( e );
+		}
+		return dataService;
+	}
+
+	private ViewServiceClient newClient()
+	{
+		try
+		{
+			return new ViewServiceClient( projectModel.getContext(), new ViewServiceListener(), timeScalingFactor, addonArguments, trackletIds );
+		}
+		catch ( RuntimeException e )
+		{
+			if ( dataService != null && client == null )
+				dataService.shutdown();
+			throw e;
+		}
+	}
+
+	/**
+	 * Sends coordinates, colors and the tag set list to Blender. The
+	 * coordinates and colors are computed in a single pass over the
+	 * tracklets. If the tracklets are loaded on demand, Blender fetches the
+	 * coordinates itself, and keeps the colors until the tracklets are
+	 * loaded.
+	 */
+	private void sendGraph()
+	{
+		ModelGraph graph = model.getGraph();
+		ReentrantReadWriteLock.ReadLock lock = graph.getLock().readLock();
+		lock.lock();
+		try
+		{
+			// the ids are assigned anew
+			changeTracker.reset();
+			synchronized ( colorCache )
+			{
+				colorCache.clear();
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		// locks the graph only while the tracklets are encoded
+		if ( dataService == null )
+			client.sendTracklets( graph, getSpotToColorFunction() );
+		if ( dataService != null || perSpotColors )
+			sendAllColors();
+		client.sendTagSetList( model.getTagSetModel().getTagSetStructure().getTagSets() );
+	}
+
+	private void onGraphChanged()
+	{
+		syncScheduler.markDirty( graphSync );
+	}
+
+	/**
+	 * Sends the tracklets affected by the recent edits to Blender, and
+	 * removes the tracklets that don't exist anymore. Runs in the
+	 * background. Edits made meanwhile schedule another run.
+	 * <p>
+	 * The changed tracklets are encoded under the read lock of the graph,
+	 * but sent after the lock is released, such that edits in Mastodon
+	 * don't wait for Blender.
+	 */
+	private void syncGraph()
+	{
+		// after a restart, the whole graph is sent anyway
+		if ( closed || resuming )
+			return;
+		ModelGraph graph = model.getGraph();
+		TrackletChangeTracker.Changes changes;
+		Runnable upsert = null;
+		Runnable colors = null;
+		ReentrantReadWriteLock.ReadLock lock = graph.getLock().readLock();
+		lock.lock();
+		try
+		{
+			changes = changeTracker.collectChanges();
+			if ( changes.isEmpty() )
+				return;
+			synchronized ( colorCache )
+			{
+				colorCache.clear();
+			}
+			// old addons can't update tracklets, the changes are dropped
+			if ( !liveUpdates )
+				return;
+			if ( !changes.upserts.isEmpty() )
+			{
+				upsert = client.prepareUpsert( graph, changes.upserts, getCoordinateTransform() );
+				colors = perSpotColors
+						? client.prepareColorRuns( graph, changes.upserts, getSpotToColorFunction() )
+						: client.prepareColors( graph, changes.upserts, getSpotToColorFunction() );
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		try
+		{
+			if ( changes.deleteAll || changes.deletedIds.length > 0 )
+				client.deleteTracklets( changes.deletedIds, changes.deleteAll );
+			if ( upsert != null )
+			{
+				upsert.run();
+				colors.run();
+			}
+		}
+		catch ( RuntimeException e )
+		{
+			// a lost connection is handled by onConnectionLost
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Called when a tag is assigned or removed. Updates the cached colors of
+	 * the tag set. Changes of the selected tag set are coalesced and sent in
+	 * the background.
+	 */
+	private void onTagChanged( TagSetStructure.TagSet changedTagSet, Spot spot )
+	{
+		synchronized ( colorCache )
+		{
+			TrackletColors colors = colorCache.get( changedTagSet );
+			int id = trackletIds.getId( spot.getInternalPoolIndex() );
+			if ( colors != null && id >= 0 )
+				colors.update( id, getSpotToColorFunction( changedTagSet ).applyAsInt( spot ) );
+		}
+		if ( changedTagSet != tagSet )
+			return;
+		changeTracker.vertexTagChanged( spot );
+		syncScheduler.markDirty( colorSync );
+	}
+
+	/**
+	 * Sends the colors of the tracklets whose first spot was tagged since
+	 * the last run. Only the first spot determines the color of a tracklet,
+	 * unless each spot has its own color. The colors are computed under
+	 * the read lock of the graph, and sent after it is released.
+	 */
+	private void syncColors()
+	{
+		if ( closed || resuming )
+			return;
+		ModelGraph graph = model.getGraph();
+		Runnable colors;
+		ReentrantReadWriteLock.ReadLock lock = graph.getLock().readLock();
+		lock.lock();
+		try
+		{
+			if ( perSpotColors )
+			{
+				RefSet< Spot > tracklets = changeTracker.collectRetaggedTracklets();
+				if ( tracklets.isEmpty() )
+					return;
+				colors = client.prepareColorRuns( graph, tracklets, getSpotToColorFunction() );
+			}
+			else
+			{
+				RefSet< Spot > trackletStarts = changeTracker.collectRetaggedTrackletStarts();
+				if ( trackletStarts.isEmpty() )
+					return;
+				colors = client.prepareColors( graph, trackletStarts, getSpotToColorFunction() );
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		try
+		{
+			colors.run();
+		}
+		catch ( RuntimeException e )
+		{
+			// a lost connection is handled by onConnectionLost
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Listens to the tag changes of the given tag sets, and stops listening
+	 * to all other tag sets.
+	 */
+	private synchronized void subscribeToTags( List< TagSetStructure.TagSet > tagSets )
+	{
+		tagChangeListeners.forEach( ( tags, listener ) -> tags.listeners().remove( listener ) );
+		tagChangeListeners.clear();
+		for ( TagSetStructure.TagSet ts : tagSets )
+		{
+			ObjTagMap.TagChangeListener< Spot > listener = spot -> onTagChanged( ts, spot );
+			ObjTagMap< Spot, TagSetStructure.Tag > tags = model.getTagSetModel().getVertexTags().tags( ts );
+			tags.listeners().add( listener );
+			tagChangeListeners.put( tags, listener );
+		}
+	}
+
+	private AffineTransform3D getCoordinateTransform()
+	{
+		return dataService != null ? dataService.getTransform() : client.getCoordinateTransform();
+	}
+
+	/**
+	 * Called in the Swing thread, when the connection to Blender is lost.
+	 * If Blender crashed or hangs, and auto resume is enabled, Blender is
+	 * restarted in a background thread and the state is restored. If the
+	 * user closed Blender, this controller is closed. A remote Blender is
+	 * not restarted, but Mastodon tries to connect to it again.
+	 * <p>
+	 * Waiting for the Blender process to exit may take a second, therefore
+	 * it is done in the background thread too.
+	 */
+	private void onConnectionLost()
+	{
+		if ( closed || resuming )
+			return;
+		if ( !autoResume )
+		{
+			close();
+			return;
+		}
+		resuming = true;
+		ViewServiceClient lostClient = client;
+		new Thread( () -> resume( lostClient ), "Resume Blender" ).start();
+	}
+
+	private void resume( ViewServiceClient lostClient )
+	{
+		if ( lostClient.hasBlenderExitedNormally() )
+		{
+			SwingUtilities.invokeLater( this::close );
+			return;
+		}
+		log.info( lostClient.isLocal()
+				? "Blender crashed or doesn't respond, restarting Blender."
+				: "Remote Blender doesn't respond, reconnecting." );
+		long start = System.nanoTime();
+		lostClient.close();
+		lostClient.killBlender();
+		try
+		{
+			client = newClient();
+			sendGraph();
+		}
+		catch ( RuntimeException e )
+		{
+			e.printStackTrace();
+			SwingUtilities.invokeLater( this::close );
+			return;
+		}
+		SwingUtilities.invokeLater( () -> {
+			resuming = false;
+			if ( closed )
+			{
+				client.close();
+				return;
+			}
+			known_active_object = -1;
+			triggerRepaint();
+			client.subscribeToChangeEvents();
+			onFocusModelEvent();
+			// edits made while Blender was restarted
+			syncScheduler.markDirty( graphSync );
+			long millis = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start );
+			log.info( "Reconnected to Blender in " + millis + " ms." );
+		} );
 	}
 
 	private void onFocusModelEvent()
@@ -129,10 +565,10 @@ public class BlenderController
 		Spot ref2 = graph.vertexRef();
 		try
 		{
-			if(spot == null)
+			if(spot == null || resuming)
 				return;
 			Spot focusedBranchStart = BranchGraphUtils.getBranchStart(spot, ref2 );
-			int id = focusedBranchStart.getInternalPoolIndex();
+			int id = trackletIds.getOrAssign( focusedBranchStart );
 			if(known_active_object == id)
 				return;
 			known_active_object = id;
@@ -167,24 +603,71 @@ public class BlenderController
 	private void sendTimepoint( int timepoint )
 	{
 		knownTimepoint = timepoint;
+		if ( resuming )
+			return;
 		client.sendTimepoint( timepoint );
 	}
 
-	private void sendCoordinates()
-	{
-		client.sendCoordinates( model.getGraph() );
+	private void sendColors() {
+		if ( resuming )
+			return;
+		sendAllColors();
 	}
 
-	private void sendColors() {
-		sendColors( getSpotToColorFunction() );
+	/**
+	 * Sends the colors of the selected tag set. They are computed once per
+	 * tag set, the client only sends the colors that changed. If each spot
+	 * has its own color, the color runs of all tracklets are computed, and
+	 * the client only sends the tracklets whose runs changed.
+	 * <p>
+	 * The colors are collected under the read lock of the graph, and sent
+	 * after it is released.
+	 */
+	private void sendAllColors()
+	{
+		ModelGraph graph = model.getGraph();
+		TagSetStructure.TagSet selected = tagSet;
+		Runnable send;
+		ReentrantReadWriteLock.ReadLock lock = graph.getLock().readLock();
+		lock.lock();
+		try
+		{
+			if ( perSpotColors )
+				send = client.prepareColorRuns( graph, BranchGraphUtils.getAllBranchStarts( graph ), getSpotToColorFunction( selected ) );
+			else
+			{
+				int[] ids;
+				int[] colors;
+				synchronized ( colorCache )
+				{
+					TrackletColors cached = colorCache.computeIfAbsent( selected, ts -> TrackletColors.compute( graph, trackletIds, getSpotToColorFunction( ts ) ) );
+					ids = cached.ids;
+					// updated by tag changes while the colors are sent
+					colors = cached.colors.clone();
+				}
+				send = () -> client.sendColors( graph, ids, colors );
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		send.run();
 	}
 
 	public void sendColors( ToIntFunction< Spot > spotToColorFunction )
 	{
+		if ( resuming )
+			return;
 		client.sendColors( model.getGraph(), spotToColorFunction );
 	}
 
 	private ToIntFunction<Spot> getSpotToColorFunction()
+	{
+		return getSpotToColorFunction( tagSet );
+	}
+
+	private ToIntFunction<Spot> getSpotToColorFunction( TagSetStructure.TagSet tagSet )
 	{
 		final int defaultColor = 0x444444;
 		if( tagSet == null )
@@ -197,8 +680,44 @@ public class BlenderController
 		};
 	}
 
+	/**
+	 * The tag sets, their tags or the tag colors were edited. The tag set
+	 * objects are replaced, so the selected tag set is looked up again, in
+	 * the background.
+	 */
+	private void onTagSetStructureChanged()
+	{
+		subscribeToTags( model.getTagSetModel().getTagSetStructure().getTagSets() );
+		synchronized ( colorCache )
+		{
+			colorCache.clear();
+		}
+		syncScheduler.markDirty( tagSetSync );
+	}
+
+	private void syncTagSets()
+	{
+		if ( closed || resuming )
+			return;
+		sendTagSetList();
+		selectTagSet( tagSetIndex );
+	}
+
+	private void selectTagSet( int index )
+	{
+		tagSetIndex = index;
+		tagSet = ViewServiceClient.getTagSet( model.getTagSetModel().getTagSetStructure(), index );
+		sendColors();
+	}
+
+	/**
+	 * Sends the names of the tag sets. The client skips the call if the
+	 * names didn't change.
+	 */
 	private void sendTagSetList()
 	{
+		if ( resuming )
+			return;
 		List<TagSetStructure.TagSet> tagSetList =
 				model.getTagSetModel().getTagSetStructure().getTagSets();
 		client.sendTagSetList( tagSetList );
@@ -207,19 +726,18 @@ public class BlenderController
 	private class ViewServiceListener implements ViewServiceClient.Listener {
 
 		@Override
-		public void onSyncGroupChanged()
+		public void onSyncGroupChanged( int syncGroupIndex )
 		{
-			groupHandle.setGroupId( client.receiveSyncGroupIndex() );
+			groupHandle.setGroupId( syncGroupIndex );
 		}
 
 		@Override
-		public void onTimepointChanged()
+		public void onTimepointChanged( int timepoint )
 		{
-			SwingUtilities.invokeLater(this::updateTimepointModel );
+			SwingUtilities.invokeLater( () -> updateTimepointModel( timepoint ) );
 		}
 
-		private void updateTimepointModel() {
-			int timePoint = client.receiveTimepoint();
+		private void updateTimepointModel( int timePoint ) {
 			//System.out.println("on time point changed to: " + timePoint);
 			if(timePoint == knownTimepoint)
 				return;
@@ -228,14 +746,13 @@ public class BlenderController
 		}
 
 		@Override
-		public void onActiveSpotChanged()
+		public void onActiveSpotChanged( int spotId )
 		{
-			SwingUtilities.invokeLater( this::onActiveSpotChange );
+			SwingUtilities.invokeLater( () -> onActiveSpotChange( spotId ) );
 		}
 
-		private void onActiveSpotChange()
+		private void onActiveSpotChange( int id )
 		{
-			int id = client.receiveActiveSpotId();
 			if(known_active_object == id)
 				return;
 			known_active_object = id;
@@ -246,8 +763,10 @@ public class BlenderController
 			Spot ref = graph.vertexRef();
 			Spot ref2 = graph.vertexRef();
 			try {
-				GraphIdBimap<Spot, Link> graphIdBimap = projectModel.getModel().getGraphIdBimap();
-				Spot branchStart = graphIdBimap.getVertex( id, ref );
+				int poolIndex = trackletIds.getPoolIndex( id );
+				if ( poolIndex < 0 )
+					return;
+				Spot branchStart = graph.vertices().getRefPool().getObject( poolIndex, ref );
 				selectAllBranchNodesAndEdges( branchStart );
 				focusModel.focusVertex( BranchGraphUtils.findVertexForTimePoint(branchStart, knownTimepoint, ref2) );
 			}
@@ -272,20 +791,21 @@ public class BlenderController
 		@Override
 		public void onUpdateColorsRequest()
 		{
-			sendColors();
+			// the upload may wait for Blender, it must not block the events
+			syncScheduler.markDirty( allColorsSync );
 		}
 
 		@Override
-		public void onSelectedTagSetChanged()
+		public void onSelectedTagSetChanged( int tagSetIndex )
 		{
-			tagSet = client.receiveTagSet(model.getTagSetModel().getTagSetStructure());
-			sendColors();
+			BlenderController.this.tagSetIndex = tagSetIndex;
+			syncScheduler.markDirty( tagSetSync );
 		}
 
 		@Override
 		public void onConnectionLost()
 		{
-			unsubscribeListeners();
+			SwingUtilities.invokeLater( BlenderController.this::onConnectionLost );
 		}
 	}
 }
@@ -0,0 +1,92 @@
+/*-
+ * #%L
+ * A Mastodon plugin data allows to show the embryo in Blender.
+ * %%
+ * Copyright (C) 2022 - 2025 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.blender;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread safe pool of direct {@link ByteBuffer}s.
+ * <p>
+ * Buffers are grouped into size classes of powers of two between 4 KB and
+ * 4 MB. {@link #acquire(int)} returns a cleared buffer of at least the
+ * requested capacity. Larger buffers are allocated on demand and not pooled.
+ * The pool retains at most the given number of bytes in total, buffers
+ * released beyond that are left to the garbage collector. Neither
+ * {@link #acquire} nor {@link #release} allocate memory once the pool is
+ * warmed up.
+ */
+class BufferPool
+{
+	private static final int MIN_SIZE_CLASS = 12;
+
+	private static final int MAX_SIZE_CLASS = 22;
+
+	private final List< ArrayBlockingQueue< ByteBuffer > > sizeClasses = new ArrayList<>();
+
+	private final long maxRetainedBytes;
+
+	private final AtomicLong retainedBytes = new AtomicLong();
+
+	BufferPool( long maxRetainedBytes )
+	{
+		this.maxRetainedBytes = maxRetainedBytes;
+		for ( int i = MIN_SIZE_CLASS; i <= MAX_SIZE_CLASS; i++ )
+			sizeClasses.add( new ArrayBlockingQueue<>( ( int ) Math.max( 1, Math.min( 1024, maxRetainedBytes >> i ) ) ) );
+	}
+
+	public ByteBuffer acquire( int capacity )
+	{
+		int sizeClass = Math.max( MIN_SIZE_CLASS, 32 - Integer.numberOfLeadingZeros( capacity - 1 ) );
+		if ( sizeClass > MAX_SIZE_CLASS )
+			return ByteBuffer.allocateDirect( capacity );
+		ByteBuffer buffer = sizeClasses.get( sizeClass - MIN_SIZE_CLASS ).poll();
+		if ( buffer == null )
+			return ByteBuffer.allocateDirect( 1 << sizeClass );
+		retainedBytes.addAndGet( -buffer.capacity() );
+		buffer.clear();
+		return buffer;
+	}
+
+	public void release( ByteBuffer buffer )
+	{
+		int capacity = buffer.capacity();
+		if ( !buffer.isDirect() || Integer.bitCount( capacity ) != 1 )
+			return;
+		int sizeClass = Integer.numberOfTrailingZeros( capacity );
+		if ( sizeClass < MIN_SIZE_CLASS || sizeClass > MAX_SIZE_CLASS )
+			return;
+		if ( retainedBytes.addAndGet( capacity ) > maxRetainedBytes
+				|| !sizeClasses.get( sizeClass - MIN_SIZE_CLASS ).offer( buffer ) )
+			retainedBytes.addAndGet( -capacity );
+	}
+}
@@ -0,0 +1,139 @@
+/*-
+ * #%L
+ * A Mastodon plugin data allows to show the embryo in Blender.
+ * %%
+ * Copyright (C) 2022 - 2025 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.blender;
+
+import io.grpc.Drainable;
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * gRPC {@link MethodDescriptor.Marshaller} for messages that are already
+ * serialized into a {@link ByteBuffer}. This is used together with
+ * {@link MethodDescriptor#toBuilder(MethodDescriptor.Marshaller, MethodDescriptor.Marshaller)}
+ * to send pre-encoded protobuf messages. Parsed messages are returned in
+ * heap buffers.
+ * <p>
+ * gRPC may stream a message more than once, e.g. if a call is retried.
+ * Each stream therefore reads a {@link ByteBuffer#duplicate() duplicate}
+ * of the buffer, and the buffer is never modified. If the buffer is taken
+ * from a {@link BufferPool}, the caller returns it to the pool once the
+ * call is finished.
+ */
+class ByteBufferMarshaller implements MethodDescriptor.Marshaller< ByteBuffer >
+{
+	private static final int SCRATCH_SIZE = 8192;
+
+	private final ThreadLocal< byte[] > scratch = ThreadLocal.withInitial( () -> new byte[ SCRATCH_SIZE ] );
+
+	@Override
+	public InputStream stream( ByteBuffer buffer )
+	{
+		return new BufferInputStream( buffer.duplicate() );
+	}
+
+	@Override
+	public ByteBuffer parse( InputStream stream )
+	{
+		try
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream( Math.max( 32, stream.available() ) );
+			byte[] chunk = scratch.get();
+			int n;
+			while ( ( n = stream.read( chunk ) ) >= 0 )
+				bytes.write( chunk, 0, n );
+			return ByteBuffer.wrap( bytes.toByteArray() );
+		}
+		catch ( IOException e )
+		{
+			throw Status.INTERNAL.withDescription( "Failed to read message." ).withCause( e ).asRuntimeException();
+		}
+	}
+
+	private class BufferInputStream extends InputStream implements KnownLength, Drainable
+	{
+		private ByteBuffer buffer;
+
+		private BufferInputStream( ByteBuffer buffer )
+		{
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int available()
+		{
+			return buffer == null ? 0 : buffer.remaining();
+		}
+
+		@Override
+		public int read()
+		{
+			if ( available() == 0 )
+				return -1;
+			return buffer.get() & 0xff;
+		}
+
+		@Override
+		public int read( byte[] bytes, int offset, int length )
+		{
+			int available = available();
+			if ( available == 0 )
+				return length == 0 ? 0 : -1;
+			int n = Math.min( length, available );
+			buffer.get( bytes, offset, n );
+			return n;
+		}
+
+		@Override
+		public int drainTo( OutputStream target ) throws IOException
+		{
+			int total = available();
+			byte[] bytes = scratch.get();
+			while ( available() > 0 )
+			{
+				int n = Math.min( bytes.length, buffer.remaining() );
+				buffer.get( bytes, 0, n );
+				target.write( bytes, 0, n );
+			}
+			return total;
+		}
+
+		@Override
+		public void close()
+		{
+			buffer = null;
+		}
+	}
+}
@@ -0,0 +1,84 @@
+/*-
+ * #%L
+ * A Mastodon plugin data allows to show the embryo in Blender.
+ * %%
+ * Copyright (C) 2022 - 2025 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.blender;
+
+import org.mastodon.ColorRuns;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+
+import java.util.function.ToIntFunction;
+
+/**
+ * Encodes the colors of the spots of a tracklet as runs: a new run starts
+ * at each spot whose color differs from the previous spot. A tracklet
+ * with a single color is one run, so the message is hardly larger than
+ * the single color sent by {@link ViewServiceClient#sendColors}.
+ */
+class ColorRunEncoder
+{
+	private ColorRunEncoder()
+	{
+		// prevent from instantiation
+	}
+
+	/**
+	 * @param branchStart       the first spot of the tracklet.
+	 * @param id                the id of the tracklet in Blender.
+	 * @param timeScalingFactor the Blender frames per Mastodon timepoint.
+	 */
+	static ColorRuns encode( ModelGraph graph, Spot branchStart, int id, ToIntFunction< Spot > spotToColor, int timeScalingFactor )
+	{
+		ColorRuns.Builder runs = ColorRuns.newBuilder().setId( id );
+		Spot ref = graph.vertexRef();
+		try
+		{
+			Spot spot = ref.refTo( branchStart );
+			int color = spotToColor.applyAsInt( spot );
+			runs.addFrames( spot.getTimepoint() * timeScalingFactor );
+			runs.addColors( color );
+			while ( spot.outgoingEdges().size() == 1 )
+			{
+				spot = spot.outgoingEdges().iterator().next().getTarget( ref );
+				if ( spot.incomingEdges().size() != 1 )
+					break;
+				int next = spotToColor.applyAsInt( spot );
+				if ( next == color )
+					continue;
+				color = next;
+				runs.addFrames( spot.getTimepoint() * timeScalingFactor );
+				runs.addColors( color );
+			}
+			return runs.build();
+		}
+		finally
+		{
+			graph.releaseRef( ref );
+		}
+	}
+}
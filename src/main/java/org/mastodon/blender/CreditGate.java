@@ -0,0 +1,125 @@
+/*-
+ * #%L
+ * A Mastodon plugin data allows to show the embryo in Blender.
+ * %%
+ * Copyright (C) 2022 - 2025 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.blender;
+
+import io.grpc.Status;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the number of items (spots or colors) that were sent to Blender,
+ * but not yet processed by Blender's main thread.
+ * <p>
+ * {@link #acquire} is called before sending and blocks while the budget is
+ * used up. Blender grants the credits back with {@link #grant} once it has
+ * processed the items. A single message that is larger than the budget is
+ * sent as soon as all previous messages are processed.
+ * <p>
+ * If Blender grants no credits for longer than the stall timeout, while
+ * {@link #acquire} waits, a {@code DEADLINE_EXCEEDED} status exception is
+ * thrown. This happens if Blender's main thread hangs.
+ */
+class CreditGate
+{
+	private long budget;
+
+	private long available;
+
+	private final long stallTimeoutNanos;
+
+	private long grants = 0;
+
+	private boolean closed = false;
+
+	CreditGate( long budget )
+	{
+		this( budget, Long.MAX_VALUE, TimeUnit.NANOSECONDS );
+	}
+
+	CreditGate( long budget, long stallTimeout, TimeUnit unit )
+	{
+		this.budget = budget;
+		this.available = budget;
+		this.stallTimeoutNanos = unit.toNanos( stallTimeout );
+	}
+
+	public synchronized void acquire( long items )
+	{
+		long needed = Math.min( items, budget );
+		long grantsSeen = grants;
+		long start = System.nanoTime();
+		try
+		{
+			while ( available < needed && !closed )
+			{
+				if ( grants != grantsSeen )
+				{
+					grantsSeen = grants;
+					start = System.nanoTime();
+				}
+				long remaining = stallTimeoutNanos - ( System.nanoTime() - start );
+				if ( remaining <= 0 )
+					throw Status.DEADLINE_EXCEEDED
+							.withDescription( "Blender did not process any data for " + TimeUnit.NANOSECONDS.toSeconds( stallTimeoutNanos ) + " seconds." )
+							.asRuntimeException();
+				TimeUnit.NANOSECONDS.timedWait( this, remaining );
+			}
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( e );
+		}
+		available -= items;
+	}
+
+	public synchronized void grant( long items )
+	{
+		available += items;
+		grants++;
+		notifyAll();
+	}
+
+	public synchronized void setBudget( long budget )
+	{
+		available += budget - this.budget;
+		this.budget = budget;
+		notifyAll();
+	}
+
+	/**
+	 * Releases all waiting threads, and lets all future calls of
+	 * {@link #acquire} pass. Used when the connection is lost.
+	 */
+	public synchronized void close()
+	{
+		closed = true;
+		notifyAll();
+	}
+}
@@ -0,0 +1,146 @@
+/*-
+ * #%L
+ * A Mastodon plugin data allows to show the embryo in Blender.
+ * %%
+ * Copyright (C) 2022 - 2025 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.blender;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Sends interactive state, like the time point or the active spot, from a
+ * background thread, such that a slow connection to Blender never blocks
+ * the caller, typically the event dispatch thread.
+ * <p>
+ * Only the newest value per key is sent: if the user scrubs through the
+ * time points faster than Blender answers, the intermediate time points
+ * are dropped. Values with different keys are sent in the order they were
+ * first submitted.
+ */
+class LatestValueSender
+{
+	private final LinkedHashMap< Object, Runnable > pending = new LinkedHashMap<>();
+
+	private final ExecutorService executor = Executors.newSingleThreadExecutor( runnable -> {
+		Thread thread = new Thread( runnable, "mastodon-blender-sender" );
+		thread.setDaemon( true );
+		return thread;
+	} );
+
+	private final Consumer< Throwable > errorHandler;
+
+	LatestValueSender( Consumer< Throwable > errorHandler )
+	{
+		this.errorHandler = errorHandler;
+	}
+
+	/**
+	 * Schedules the send call. Replaces a call with the same key that was
+	 * not yet started.
+	 */
+	public void submit( Object key, Runnable send )
+	{
+		synchronized ( pending )
+		{
+			boolean idle = pending.isEmpty();
+			pending.put( key, send );
+			if ( idle )
+				executor.execute( this::drain );
+		}
+	}
+
+	/**
+	 * Stops the background thread. Pending calls are dropped.
+	 */
+	public void shutdown()
+	{
+		synchronized ( pending )
+		{
+			pending.clear();
+		}
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Waits until all submitted calls are done. Used by tests.
+	 */
+	boolean awaitIdle( long timeout, TimeUnit unit ) throws InterruptedException
+	{
+		long deadline = System.nanoTime() + unit.toNanos( timeout );
+		while ( !isEmpty() )
+		{
+			if ( System.nanoTime() > deadline )
+				return false;
+			Thread.sleep( 1 );
+		}
+		return true;
+	}
+
+	private boolean isEmpty()
+	{
+		synchronized ( pending )
+		{
+			return pending.isEmpty();
+		}
+	}
+
+	private void drain()
+	{
+		while ( true )
+		{
+			Runnable send;
+			synchronized ( pending )
+			{
+				Iterator< Map.Entry< Object, Runnable > > iterator = pending.entrySet().iterator();
+				if ( !iterator.hasNext() )
+					return;
+				send = iterator.next().getValue();
+				// The entry stays in the map while sending, such that
+				// submit doesn't start a second drain task.
+			}
+			try
+			{
+				send.run();
+			}
+			catch ( RuntimeException e )
+			{
+				errorHandler.accept( e );
+			}
+			synchronized ( pending )
+			{
+				Iterator< Map.Entry< Object, Runnable > > iterator = pending.entrySet().iterator();
+				if ( iterator.hasNext() && iterator.next().getValue() == send )
+					iterator.remove();
+			}
+		}
+	}
+}
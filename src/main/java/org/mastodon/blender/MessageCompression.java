@@ -0,0 +1,119 @@
+/*-
+ * #%L
+ * A Mastodon plugin data allows to show the embryo in Blender.
+ * %%
+ * Copyright (C) 2022 - 2025 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.blender;
+
+import io.grpc.Codec;
+import io.grpc.CompressorRegistry;
+import io.grpc.DecompressorRegistry;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Message compressions that can be used for the uploads to Blender.
+ * gRPC-java only ships with "gzip", therefore the "deflate" encoding
+ * (zlib format) is implemented here. The Python gRPC server supports both.
+ */
+class MessageCompression
+{
+	static final String NONE = "none";
+
+	static final String GZIP = "gzip";
+
+	static final String DEFLATE = "deflate";
+
+	static final List< String > ALL = Arrays.asList( NONE, GZIP, DEFLATE );
+
+	private MessageCompression()
+	{
+		// prevent from instantiation
+	}
+
+	static CompressorRegistry compressorRegistry()
+	{
+		CompressorRegistry registry = CompressorRegistry.newEmptyInstance();
+		registry.register( Codec.Identity.NONE );
+		registry.register( new Codec.Gzip() );
+		registry.register( new DeflateCodec() );
+		return registry;
+	}
+
+	static DecompressorRegistry decompressorRegistry()
+	{
+		return DecompressorRegistry.getDefaultInstance().with( new DeflateCodec(), true );
+	}
+
+	/**
+	 * Uses {@link Deflater#BEST_SPEED}, because the uploads are large, and
+	 * the repeated colors and smooth coordinates compress well even at the
+	 * lowest level.
+	 */
+	static class DeflateCodec implements Codec
+	{
+		@Override
+		public String getMessageEncoding()
+		{
+			return DEFLATE;
+		}
+
+		@Override
+		public OutputStream compress( OutputStream os )
+		{
+			Deflater deflater = new Deflater( Deflater.BEST_SPEED );
+			return new DeflaterOutputStream( os, deflater )
+			{
+				@Override
+				public void close() throws IOException
+				{
+					try
+					{
+						super.close();
+					}
+					finally
+					{
+						// DeflaterOutputStream only ends its default deflater
+						deflater.end();
+					}
+				}
+			};
+		}
+
+		@Override
+		public InputStream decompress( InputStream is )
+		{
+			return new InflaterInputStream( is );
+		}
+	}
+}
@@ -0,0 +1,158 @@
+/*-
+ * #%L
+ * A Mastodon plugin data allows to show the embryo in Blender.
+ * %%
+ * Copyright (C) 2022 - 2025 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.blender;
+
+import net.imglib2.realtransform.AffineTransform3D;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+/**
+ * Encodes many tracklets in parallel using a {@link ForkJoinPool}.
+ * <p>
+ * The branch starts are partitioned into batches. Each batch is encoded
+ * by a worker thread with its own {@link TrackletEncoder} and its own
+ * refs. The encoded messages are passed to the output in the order of the
+ * given branch starts, on the calling thread. The output is therefore
+ * independent of the number of threads.
+ * <p>
+ * The caller must hold the graph's read lock while calling {@link #encode}.
+ * {@link #encode} returns only after all workers stopped, also if encoding
+ * fails, such that no worker reads the graph after the lock is released.
+ */
+class ParallelTrackletEncoder
+{
+	private static final int BATCH_SIZE = 64;
+
+	private final int parallelism;
+
+	private final AffineTransform3D transform;
+
+	private final int timeScalingFactor;
+
+	private final int maxSpotsPerMessage;
+
+	private final IntFunction< ByteBuffer > allocator;
+
+	ParallelTrackletEncoder( int parallelism, AffineTransform3D transform, int timeScalingFactor, int maxSpotsPerMessage, IntFunction< ByteBuffer > allocator )
+	{
+		this.parallelism = parallelism;
+		this.transform = transform;
+		this.timeScalingFactor = timeScalingFactor;
+		this.maxSpotsPerMessage = maxSpotsPerMessage;
+		this.allocator = allocator;
+	}
+
+	/**
+	 * Encodes the tracklets starting at the spots with the given pool indices.
+	 *
+	 * @param ids    the ids of the tracklets in Blender, in the same order.
+	 * @param colors the colors of the tracklets, in the same order, or null
+	 *               if the messages don't contain colors.
+	 */
+	public void encode( ModelGraph graph, int[] branchStarts, int[] ids, int[] colors, Consumer< ByteBuffer > output )
+	{
+		ForkJoinPool forkJoinPool = new ForkJoinPool( parallelism );
+		try
+		{
+			int batches = ( branchStarts.length + BATCH_SIZE - 1 ) / BATCH_SIZE;
+			int maxBatchesAhead = 2 * parallelism;
+			Deque< ForkJoinTask< List< ByteBuffer > > > queue = new ArrayDeque<>();
+			int submitted = 0;
+			for ( int i = 0; i < batches; i++ )
+			{
+				while ( submitted < batches && submitted <= i + maxBatchesAhead )
+					queue.add( forkJoinPool.submit( encodeBatch( graph, branchStarts, ids, colors, submitted++ ) ) );
+				for ( ByteBuffer buffer : queue.poll().join() )
+					output.accept( buffer );
+			}
+		}
+		finally
+		{
+			forkJoinPool.shutdownNow();
+			awaitTermination( forkJoinPool );
+		}
+	}
+
+	private static void awaitTermination( ForkJoinPool forkJoinPool )
+	{
+		boolean interrupted = false;
+		while ( true )
+		{
+			try
+			{
+				// a batch is small, the workers stop quickly
+				if ( forkJoinPool.awaitTermination( 1, TimeUnit.SECONDS ) )
+					break;
+			}
+			catch ( InterruptedException e )
+			{
+				interrupted = true;
+			}
+		}
+		if ( interrupted )
+			Thread.currentThread().interrupt();
+	}
+
+	private Callable< List< ByteBuffer > > encodeBatch( ModelGraph graph, int[] branchStarts, int[] ids, int[] colors, int batch )
+	{
+		return () -> {
+			List< ByteBuffer > buffers = new ArrayList<>();
+			Spot branchStart = graph.vertexRef();
+			try (TrackletEncoder encoder = new TrackletEncoder( graph, transform.copy(), timeScalingFactor, maxSpotsPerMessage, allocator, buffers::add ))
+			{
+				int end = Math.min( branchStarts.length, ( batch + 1 ) * BATCH_SIZE );
+				for ( int i = batch * BATCH_SIZE; i < end; i++ )
+				{
+					graph.vertices().getRefPool().getObject( branchStarts[ i ], branchStart );
+					if ( colors == null )
+						encoder.encode( branchStart, ids[ i ] );
+					else
+						encoder.encode( branchStart, ids[ i ], colors[ i ] );
+				}
+			}
+			finally
+			{
+				graph.releaseRef( branchStart );
+			}
+			return buffers;
+		};
+	}
+}
@@ -0,0 +1,150 @@
+/*-
+ * #%L
+ * A Mastodon plugin data allows to show the embryo in Blender.
+ * %%
+ * Copyright (C) 2022 - 2025 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.blender;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.Status;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Sends requests to Blender asynchronously, using a future stub, while
+ * keeping at most a fixed number of requests in flight.
+ * <p>
+ * {@link #send(List, Function)} blocks only if the window of in-flight
+ * requests is full. {@link #flush()} waits until all requests completed
+ * and throws the first failure that occurred.
+ */
+class PipelinedSender
+{
+	private final int maxRequestsInFlight;
+
+	private final Semaphore window;
+
+	private final AtomicReference< Throwable > failure = new AtomicReference<>();
+
+	PipelinedSender( int maxRequestsInFlight )
+	{
+		if ( maxRequestsInFlight < 1 )
+			throw new IllegalArgumentException( "maxRequestsInFlight must be at least 1." );
+		this.maxRequestsInFlight = maxRequestsInFlight;
+		this.window = new Semaphore( maxRequestsInFlight );
+	}
+
+	public < T > void send( T request, Function< T, ListenableFuture< ? > > call )
+	{
+		send( Collections.singletonList( request ), call );
+	}
+
+	/**
+	 * Sends the given requests one after another. Each request is only sent
+	 * after the previous one completed, which preserves their order on the
+	 * Blender side. The sequence as a whole occupies one slot of the window.
+	 */
+	public < T > void send( List< T > requests, Function< T, ListenableFuture< ? > > call )
+	{
+		throwIfFailed();
+		if ( requests.isEmpty() )
+			return;
+		acquire( 1 );
+		sendNext( requests.iterator(), call );
+	}
+
+	/**
+	 * Blocks until all requests have completed. Throws the first failure
+	 * that occurred, if any.
+	 */
+	public void flush()
+	{
+		acquire( maxRequestsInFlight );
+		window.release( maxRequestsInFlight );
+		throwIfFailed();
+	}
+
+	private < T > void sendNext( Iterator< T > requests, Function< T, ListenableFuture< ? > > call )
+	{
+		ListenableFuture< ? > future;
+		try
+		{
+			future = call.apply( requests.next() );
+		}
+		catch ( RuntimeException e )
+		{
+			failure.compareAndSet( null, e );
+			window.release();
+			return;
+		}
+		Futures.addCallback( future, new FutureCallback< Object >()
+		{
+			@Override
+			public void onSuccess( Object result )
+			{
+				if ( requests.hasNext() && failure.get() == null )
+					sendNext( requests, call );
+				else
+					window.release();
+			}
+
+			@Override
+			public void onFailure( Throwable throwable )
+			{
+				failure.compareAndSet( null, throwable );
+				window.release();
+			}
+		}, MoreExecutors.directExecutor() );
+	}
+
+	private void acquire( int permits )
+	{
+		try
+		{
+			window.acquire( permits );
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( e );
+		}
+	}
+
+	private void throwIfFailed()
+	{
+		Throwable throwable = failure.get();
+		if ( throwable != null )
+			throw Status.fromThrowable( throwable ).asRuntimeException();
+	}
+}
@@ -0,0 +1,80 @@
+/*-
+ * #%L
+ * A Mastodon plugin data allows to show the embryo in Blender.
+ * %%
+ * Copyright (C) 2022 - 2025 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.blender;
+
+import org.mastodon.ColorRuns;
+
+import java.util.Arrays;
+
+/**
+ * The color runs last sent to Blender for each tracklet, indexed by the
+ * tracklet id. Used by {@link ViewServiceClient#sendColorRuns} to send only
+ * the tracklets whose colors changed. Not thread safe.
+ */
+class SentColorRuns
+{
+	private ColorRuns[] runs = new ColorRuns[ 0 ];
+
+	/**
+	 * Returns true if the given runs differ from the runs last sent for
+	 * the same tracklet.
+	 */
+	boolean changed( ColorRuns tracklet )
+	{
+		int id = tracklet.getId();
+		return id >= runs.length || !tracklet.equals( runs[ id ] );
+	}
+
+	/**
+	 * Remembers that the given runs were sent.
+	 */
+	void update( ColorRuns tracklet )
+	{
+		int id = tracklet.getId();
+		if ( id >= runs.length )
+			runs = Arrays.copyOf( runs, Math.max( id + 1, runs.length * 2 ) );
+		runs[ id ] = tracklet;
+	}
+
+	/**
+	 * Forgets the runs of the given tracklets. Called when they are removed
+	 * from Blender, or got a single color instead.
+	 */
+	void forget( int[] ids )
+	{
+		for ( int id : ids )
+			if ( id < runs.length )
+				runs[ id ] = null;
+	}
+
+	void clear()
+	{
+		Arrays.fill( runs, null );
+	}
+}
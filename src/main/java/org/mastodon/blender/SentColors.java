@@ -0,0 +1,94 @@
+/*-
+ * #%L
+ * A Mastodon plugin data allows to show the embryo in Blender.
+ * %%
+ * Copyright (C) 2022 - 2025 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.blender;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The last color sent to Blender for each tracklet, indexed by the
+ * tracklet id. Used by {@link ViewServiceClient#sendColors} to send only
+ * the colors that changed. Not thread safe.
+ */
+class SentColors
+{
+	private int[] colors = new int[ 0 ];
+
+	/**
+	 * Ids of the tracklets, whose color is known to Blender.
+	 */
+	private final BitSet known = new BitSet();
+
+	/**
+	 * Returns the positions {@code i}, where {@code colors[i]} differs from
+	 * the color last sent for the tracklet {@code ids[i]}.
+	 */
+	int[] changed( int[] ids, int[] colors )
+	{
+		int[] changed = new int[ ids.length ];
+		int n = 0;
+		for ( int i = 0; i < ids.length; i++ )
+		{
+			int id = ids[ i ];
+			if ( !known.get( id ) || this.colors[ id ] != colors[ i ] )
+				changed[ n++ ] = i;
+		}
+		return Arrays.copyOf( changed, n );
+	}
+
+	/**
+	 * Remembers that the given colors were sent.
+	 */
+	void update( int[] ids, int[] colors )
+	{
+		for ( int i = 0; i < ids.length; i++ )
+		{
+			int id = ids[ i ];
+			if ( id >= this.colors.length )
+				this.colors = Arrays.copyOf( this.colors, Math.max( id + 1, this.colors.length * 2 ) );
+			this.colors[ id ] = colors[ i ];
+			known.set( id );
+		}
+	}
+
+	/**
+	 * Forgets the colors of the given tracklets. Called when they are
+	 * removed from Blender, because a new tracklet may reuse the id.
+	 */
+	void forget( int[] ids )
+	{
+		for ( int id : ids )
+			known.clear( id );
+	}
+
+	void clear()
+	{
+		known.clear();
+	}
+}
@@ -0,0 +1,253 @@
+/*-
+ * #%L
+ * A Mastodon plugin data allows to show the embryo in Blender.
+ * %%
+ * Copyright (C) 2022 - 2025 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.blender;
+
+import net.imglib2.realtransform.AffineTransform3D;
+import org.mastodon.SharedFileRequest;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes tracklets or colors into a memory-mapped file. Only the path of
+ * the file is sent to Blender, see {@link SharedFileRequest}, and the
+ * addon reads the file with {@code numpy.memmap}. This avoids copying the
+ * data through protobuf, HTTP/2 and the Python protobuf objects.
+ * <p>
+ * File layout, all values are little-endian 32 bit integers or floats:
+ * <pre>
+ * header:         magic "MBVF", version, kind, count, spot_count, 3 x reserved
+ * kind TRACKLETS:
+ *   table:        count x ( id, first_spot, spot_count, label_offset, label_length )
+ *   coordinates:  spot_count x ( x, y, z )
+ *   timepoints:   spot_count x t
+ *   labels:       UTF-8 bytes, label_offset is relative to the start of this section
+ * kind COLORS:
+ *   table:        count x ( id, color )
+ * </pre>
+ * The format must match {@code mb_shared_file.py} in the Blender addon.
+ */
+class SharedFile
+{
+	static final int MAGIC = 'M' | 'B' << 8 | 'V' << 16 | 'F' << 24;
+
+	static final int VERSION = 1;
+
+	static final int KIND_TRACKLETS = 1;
+
+	static final int KIND_COLORS = 2;
+
+	static final int HEADER_SIZE = 32;
+
+	static final int TRACKLET_ENTRY_SIZE = 5 * Integer.BYTES;
+
+	static final int COLOR_ENTRY_SIZE = 2 * Integer.BYTES;
+
+	private SharedFile()
+	{
+		// prevent from instantiation
+	}
+
+	/**
+	 * Writes the tracklets that start at the given branch starts (pool
+	 * indices) into a new temporary file. The tracklets are stored with the
+	 * given ids, in the same order.
+	 *
+	 * @return the request that refers to the file, or null if the tracklets
+	 * don't fit into a single memory mapped file (2 GB).
+	 */
+	static SharedFileRequest writeTracklets( ModelGraph graph, int[] branchStarts, int[] ids, AffineTransform3D transform, int timeScalingFactor )
+			throws IOException
+	{
+		int count = branchStarts.length;
+		int[] spotCounts = new int[ count ];
+		byte[][] labels = new byte[ count ][];
+		long spotCount = 0;
+		long labelsSize = 0;
+		Spot branchStart = graph.vertexRef();
+		Spot spot = graph.vertexRef();
+		Link edge = graph.edgeRef();
+		try
+		{
+			for ( int i = 0; i < count; i++ )
+			{
+				graph.vertices().getRefPool().getObject( branchStarts[ i ], branchStart );
+				spotCounts[ i ] = countSpots( branchStart, spot, edge );
+				labels[ i ] = branchStart.getLabel().getBytes( StandardCharsets.UTF_8 );
+				spotCount += spotCounts[ i ];
+				labelsSize += labels[ i ].length;
+			}
+			long tableOffset = HEADER_SIZE;
+			long coordinatesOffset = tableOffset + ( long ) count * TRACKLET_ENTRY_SIZE;
+			long timepointsOffset = coordinatesOffset + spotCount * 3 * Float.BYTES;
+			long labelsOffset = timepointsOffset + spotCount * Integer.BYTES;
+			long size = labelsOffset + labelsSize;
+			if ( size > Integer.MAX_VALUE )
+				return null;
+			Path path = createTempFile();
+			MappedByteBuffer buffer = map( path, size );
+			writeHeader( buffer, KIND_TRACKLETS, count, ( int ) spotCount );
+			int firstSpot = 0;
+			int labelOffset = 0;
+			double[] position = new double[ 3 ];
+			for ( int i = 0; i < count; i++ )
+			{
+				graph.vertices().getRefPool().getObject( branchStarts[ i ], branchStart );
+				int entry = ( int ) tableOffset + i * TRACKLET_ENTRY_SIZE;
+				buffer.putInt( entry, ids[ i ] );
+				buffer.putInt( entry + 4, firstSpot );
+				buffer.putInt( entry + 8, spotCounts[ i ] );
+				buffer.putInt( entry + 12, labelOffset );
+				buffer.putInt( entry + 16, labels[ i ].length );
+				// the spot before the branch start is included, for better visualization of cell divisions in Blender
+				boolean hasIncomingSpot = branchStart.incomingEdges().size() == 1;
+				Spot s = hasIncomingSpot ? branchStart.incomingEdges().get( 0, edge ).getSource( spot ) : spot.refTo( branchStart );
+				for ( int j = 0; j < spotCounts[ i ]; j++ )
+				{
+					if ( j > 0 )
+						s = ( j == 1 && hasIncomingSpot ) ? spot.refTo( branchStart ) : s.outgoingEdges().get( 0, edge ).getTarget( spot );
+					s.localize( position );
+					transform.apply( position, position );
+					int index = ( int ) coordinatesOffset + ( firstSpot + j ) * 3 * Float.BYTES;
+					buffer.putFloat( index, ( float ) position[ 0 ] );
+					buffer.putFloat( index + 4, ( float ) position[ 1 ] );
+					buffer.putFloat( index + 8, ( float ) position[ 2 ] );
+					buffer.putInt( ( int ) timepointsOffset + ( firstSpot + j ) * Integer.BYTES, s.getTimepoint() * timeScalingFactor );
+				}
+				buffer.position( ( int ) labelsOffset + labelOffset );
+				buffer.put( labels[ i ] );
+				firstSpot += spotCounts[ i ];
+				labelOffset += labels[ i ].length;
+			}
+			buffer.force();
+			return request( path, size );
+		}
+		finally
+		{
+			graph.releaseRef( branchStart );
+			graph.releaseRef( spot );
+			graph.releaseRef( edge );
+		}
+	}
+
+	/**
+	 * Writes the given id-color pairs into a new temporary file.
+	 */
+	static SharedFileRequest writeColors( int[] ids, int[] colors ) throws IOException
+	{
+		int count = ids.length;
+		long size = HEADER_SIZE + ( long ) count * COLOR_ENTRY_SIZE;
+		Path path = createTempFile();
+		MappedByteBuffer buffer = map( path, size );
+		writeHeader( buffer, KIND_COLORS, count, 0 );
+		for ( int i = 0; i < count; i++ )
+		{
+			buffer.putInt( ids[ i ] );
+			buffer.putInt( colors[ i ] );
+		}
+		buffer.force();
+		return request( path, size );
+	}
+
+	/**
+	 * Deletes the file, after Blender has read it.
+	 */
+	static void delete( SharedFileRequest request )
+	{
+		try
+		{
+			Files.deleteIfExists( Paths.get( request.getPath() ) );
+		}
+		catch ( IOException e )
+		{
+			// The mapping might still be open on Windows, try again on exit.
+			Paths.get( request.getPath() ).toFile().deleteOnExit();
+		}
+	}
+
+	private static int countSpots( Spot branchStart, Spot ref, Link edge )
+	{
+		int count = branchStart.incomingEdges().size() == 1 ? 2 : 1;
+		Spot spot = ref.refTo( branchStart );
+		while ( spot.outgoingEdges().size() == 1 )
+		{
+			spot = spot.outgoingEdges().get( 0, edge ).getTarget( ref );
+			if ( spot.incomingEdges().size() != 1 )
+				break;
+			count++;
+		}
+		return count;
+	}
+
+	private static void writeHeader( MappedByteBuffer buffer, int kind, int count, int spotCount )
+	{
+		buffer.putInt( MAGIC );
+		buffer.putInt( VERSION );
+		buffer.putInt( kind );
+		buffer.putInt( count );
+		buffer.putInt( spotCount );
+		buffer.position( HEADER_SIZE );
+	}
+
+	private static Path createTempFile() throws IOException
+	{
+		Path path = Files.createTempFile( "mastodon-blender", ".bin" );
+		path.toFile().deleteOnExit();
+		return path;
+	}
+
+	private static MappedByteBuffer map( Path path, long size ) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open( path, StandardOpenOption.READ, StandardOpenOption.WRITE ))
+		{
+			MappedByteBuffer buffer = channel.map( FileChannel.MapMode.READ_WRITE, 0, size );
+			buffer.order( ByteOrder.LITTLE_ENDIAN );
+			return buffer;
+		}
+	}
+
+	private static SharedFileRequest request( Path path, long size )
+	{
+		return SharedFileRequest.newBuilder()
+				.setPath( path.toAbsolutePath().toString() )
+				.setOffset( 0 )
+				.setLength( size )
+				.build();
+	}
+}
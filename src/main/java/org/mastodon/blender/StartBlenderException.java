@@ -34,4 +34,9 @@ public class StartBlenderException extends RuntimeException
 	{
 		super( "Failed to start Blender.", throwable );
 	}
+
+	public StartBlenderException( String message, Throwable throwable )
+	{
+		super( message, throwable );
+	}
 }
@@ -0,0 +1,179 @@
+/*-
+ * #%L
+ * A Mastodon plugin data allows to show the embryo in Blender.
+ * %%
+ * Copyright (C) 2022 - 2025 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.blender;
+
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import org.mastodon.Empty;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends a sequence of messages to Blender over a client-streaming RPC.
+ * <p>
+ * Usage:
+ * <pre>
+ * StreamingUpload&lt;AddMovingSpotRequest&gt; upload = new StreamingUpload&lt;&gt;();
+ * nonBlockingStub.addMovingSpots( upload );
+ * for ( ... )
+ *     upload.send( request );
+ * upload.finish();
+ * </pre>
+ * {@link #send} blocks while the transport is not ready to accept more data,
+ * such that the messages are not all buffered in memory at once.
+ * {@link #finish} blocks until Blender has received all messages and
+ * throws an exception if the upload failed.
+ * <p>
+ * If the transport doesn't become ready within the stall timeout, the
+ * upload is canceled with {@code DEADLINE_EXCEEDED}. A deadline for the
+ * whole call would depend on the size of the upload.
+ */
+class StreamingUpload< T > implements ClientResponseObserver< T, Empty >
+{
+	private final CountDownLatch done = new CountDownLatch( 1 );
+
+	private final Object readyLock = new Object();
+
+	private ClientCallStreamObserver< T > requestStream;
+
+	private volatile Throwable error;
+
+	private final long stallTimeoutNanos;
+
+	StreamingUpload()
+	{
+		this( Long.MAX_VALUE, TimeUnit.NANOSECONDS );
+	}
+
+	StreamingUpload( long stallTimeout, TimeUnit unit )
+	{
+		this.stallTimeoutNanos = unit.toNanos( stallTimeout );
+	}
+
+	@Override
+	public void beforeStart( ClientCallStreamObserver< T > requestStream )
+	{
+		this.requestStream = requestStream;
+		requestStream.setOnReadyHandler( this::notifyReady );
+	}
+
+	public void send( T message )
+	{
+		waitUntilReady();
+		requestStream.onNext( message );
+	}
+
+	public void finish()
+	{
+		requestStream.onCompleted();
+		try
+		{
+			done.await();
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			requestStream.cancel( "Upload interrupted.", e );
+			throw new RuntimeException( e );
+		}
+		throwIfFailed();
+	}
+
+	public void cancel( Throwable cause )
+	{
+		requestStream.cancel( "Upload canceled.", cause );
+	}
+
+	private void waitUntilReady()
+	{
+		long start = System.nanoTime();
+		synchronized ( readyLock )
+		{
+			while ( !requestStream.isReady() && done.getCount() > 0 )
+			{
+				if ( System.nanoTime() - start > stallTimeoutNanos )
+				{
+					StatusRuntimeException stalled = Status.DEADLINE_EXCEEDED
+							.withDescription( "Blender did not accept any data for " + TimeUnit.NANOSECONDS.toSeconds( stallTimeoutNanos ) + " seconds." )
+							.asRuntimeException();
+					requestStream.cancel( "Upload stalled.", stalled );
+					throw stalled;
+				}
+				try
+				{
+					readyLock.wait( 100 );
+				}
+				catch ( InterruptedException e )
+				{
+					Thread.currentThread().interrupt();
+					throw new RuntimeException( e );
+				}
+			}
+		}
+		throwIfFailed();
+	}
+
+	private void throwIfFailed()
+	{
+		if ( error != null )
+			throw Status.fromThrowable( error ).asRuntimeException();
+	}
+
+	private void notifyReady()
+	{
+		synchronized ( readyLock )
+		{
+			readyLock.notifyAll();
+		}
+	}
+
+	@Override
+	public void onNext( Empty empty )
+	{
+		// nothing to do
+	}
+
+	@Override
+	public void onError( Throwable throwable )
+	{
+		error = throwable;
+		done.countDown();
+		notifyReady();
+	}
+
+	@Override
+	public void onCompleted()
+	{
+		done.countDown();
+		notifyReady();
+	}
+}
@@ -0,0 +1,182 @@
+/*-
+ * #%L
+ * A Mastodon plugin data allows to show the embryo in Blender.
+ * %%
+ * Copyright (C) 2022 - 2025 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.blender;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Batches the updates that are sent to Blender while the model is edited.
+ * <p>
+ * Curation produces bursts of events, e.g. undo and redo, merging tracks,
+ * or scripts that tag many spots. The model listeners only mark a sync
+ * task as dirty, see {@link #markDirty}. The dirty tasks are run in a
+ * background thread, in the order given to the constructor, at most once
+ * per interval. All events that arrive until a task runs are handled by
+ * that single run. What exactly is dirty, e.g. which tracklets, is
+ * recorded by the tasks themselves, see {@link TrackletChangeTracker}.
+ */
+class SyncScheduler
+{
+	private final long intervalNanos;
+
+	private final List< Runnable > tasks;
+
+	private final Set< Runnable > dirty = ConcurrentHashMap.newKeySet();
+
+	private final AtomicBoolean flushScheduled = new AtomicBoolean( false );
+
+	private final ScheduledExecutorService executor;
+
+	private volatile long lastFlush;
+
+	private final AtomicInteger pendingEvents = new AtomicInteger();
+
+	private final AtomicLong eventCount = new AtomicLong();
+
+	private final AtomicLong flushCount = new AtomicLong();
+
+	private volatile int lastEventsPerFlush = 0;
+
+	private volatile int maxEventsPerFlush = 0;
+
+	/**
+	 * @param interval minimum time between two flushes, in milliseconds.
+	 * @param tasks    the sync tasks, in the order they are run.
+	 */
+	SyncScheduler( String threadName, long interval, Runnable... tasks )
+	{
+		this.intervalNanos = TimeUnit.MILLISECONDS.toNanos( interval );
+		this.tasks = Arrays.asList( tasks );
+		this.lastFlush = System.nanoTime() - intervalNanos;
+		this.executor = Executors.newSingleThreadScheduledExecutor( runnable -> {
+			Thread thread = new Thread( runnable, threadName );
+			thread.setDaemon( true );
+			return thread;
+		} );
+	}
+
+	/**
+	 * Marks the given task as dirty. It is run with the next flush, which
+	 * happens immediately, or one interval after the previous flush.
+	 */
+	void markDirty( Runnable task )
+	{
+		eventCount.incrementAndGet();
+		pendingEvents.incrementAndGet();
+		dirty.add( task );
+		if ( !flushScheduled.compareAndSet( false, true ) )
+			return;
+		long delay = Math.max( 0, lastFlush + intervalNanos - System.nanoTime() );
+		try
+		{
+			executor.schedule( this::flush, delay, TimeUnit.NANOSECONDS );
+		}
+		catch ( RejectedExecutionException e )
+		{
+			// shut down, nothing is sent anymore
+		}
+	}
+
+	private void flush()
+	{
+		// events from now on schedule the next flush
+		flushScheduled.set( false );
+		lastFlush = System.nanoTime();
+		int events = pendingEvents.getAndSet( 0 );
+		flushCount.incrementAndGet();
+		lastEventsPerFlush = events;
+		maxEventsPerFlush = Math.max( maxEventsPerFlush, events );
+		for ( Runnable task : tasks )
+		{
+			if ( !dirty.remove( task ) )
+				continue;
+			try
+			{
+				task.run();
+			}
+			catch ( RuntimeException e )
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	void shutdown()
+	{
+		executor.shutdownNow();
+	}
+
+	/**
+	 * @return the number of calls to {@link #markDirty}.
+	 */
+	long getEventCount()
+	{
+		return eventCount.get();
+	}
+
+	/**
+	 * @return the number of flushes, i.e. batched updates.
+	 */
+	long getFlushCount()
+	{
+		return flushCount.get();
+	}
+
+	/**
+	 * @return the number of events handled by the last flush.
+	 */
+	int getLastEventsPerFlush()
+	{
+		return lastEventsPerFlush;
+	}
+
+	/**
+	 * @return the largest number of events handled by a single flush.
+	 */
+	int getMaxEventsPerFlush()
+	{
+		return maxEventsPerFlush;
+	}
+
+	@Override
+	public String toString()
+	{
+		return eventCount.get() + " events in " + flushCount.get() + " updates, at most " + maxEventsPerFlush + " events per update";
+	}
+}
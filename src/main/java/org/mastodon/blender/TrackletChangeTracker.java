@@ -0,0 +1,365 @@
+/*-
+ * #%L
+ * A Mastodon plugin data allows to show the embryo in Blender.
+ * %%
+ * Copyright (C) 2022 - 2025 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.blender;
+
+import org.mastodon.blender.utils.BranchGraphUtils;
+import org.mastodon.collection.RefSet;
+import org.mastodon.collection.ref.RefSetImp;
+import org.mastodon.graph.GraphListener;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.spatial.VertexPositionListener;
+
+import java.util.BitSet;
+
+/**
+ * Records which tracklets are affected by edits of the {@link ModelGraph},
+ * such that only these tracklets are sent to Blender again.
+ * <p>
+ * A tracklet is identified by its branch start, and by an id from the
+ * {@link TrackletIdRegistry} in Blender. The ids of removed tracklets are
+ * released here. The graph listener methods are called while the graph is edited, and only
+ * remember the touched, moved and retagged spots. {@link #collectChanges} is called later,
+ * under the read lock, and computes the tracklets that must be sent again
+ * and the tracklets that don't exist anymore.
+ */
+class TrackletChangeTracker implements GraphListener< Spot, Link >, VertexPositionListener< Spot >
+{
+	private final ModelGraph graph;
+
+	private final TrackletIdRegistry trackletIds;
+
+	/**
+	 * Spots that were added, or whose edges were added or removed.
+	 */
+	private final RefSet< Spot > touched;
+
+	/**
+	 * Spots whose position changed. Only their tracklets are sent again,
+	 * the structure of the graph is unchanged.
+	 */
+	private final RefSet< Spot > moved;
+
+	/**
+	 * Spots whose tag in the selected tag set changed.
+	 */
+	private final RefSet< Spot > retagged;
+
+	/**
+	 * Branch starts of the tracklets that were sent to Blender.
+	 */
+	private final RefSet< Spot > sent;
+
+	/**
+	 * Ids of sent tracklets whose branch start was removed from the graph.
+	 * The ids are already released.
+	 */
+	private final BitSet removed = new BitSet();
+
+	/**
+	 * Ids released since the last {@link #collectChanges}.
+	 */
+	private final BitSet released = new BitSet();
+
+	/**
+	 * Ids released before the last {@link #collectChanges}. The deletion
+	 * of their tracklets was sent to Blender since, they are freed by the
+	 * next {@link #collectChanges}. Freeing them earlier would allow
+	 * another thread to assign the id to a new tracklet, while Blender
+	 * still shows the old tracklet with that id.
+	 */
+	private final BitSet releasedBefore = new BitSet();
+
+	/**
+	 * Pool indices of the spots removed since the last
+	 * {@link #collectChanges}. Their edges may be reported after the spot.
+	 */
+	private final BitSet removedSpots = new BitSet();
+
+	private boolean rebuilt = false;
+
+	TrackletChangeTracker( ModelGraph graph, TrackletIdRegistry trackletIds )
+	{
+		this.graph = graph;
+		this.trackletIds = trackletIds;
+		this.touched = new RefSetImp<>( graph.vertices().getRefPool() );
+		this.moved = new RefSetImp<>( graph.vertices().getRefPool() );
+		this.retagged = new RefSetImp<>( graph.vertices().getRefPool() );
+		this.sent = new RefSetImp<>( graph.vertices().getRefPool() );
+	}
+
+	/**
+	 * Forgets all recorded changes, and assumes that Blender knows all
+	 * tracklets of the current graph. Called under the read lock, before
+	 * the whole graph is sent to Blender. The tracklet ids are assigned
+	 * anew, starting from zero.
+	 */
+	public synchronized void reset()
+	{
+		trackletIds.clear();
+		touched.clear();
+		moved.clear();
+		retagged.clear();
+		removed.clear();
+		released.clear();
+		releasedBefore.clear();
+		removedSpots.clear();
+		rebuilt = false;
+		sent.clear();
+		sent.addAll( BranchGraphUtils.getAllBranchStarts( graph ) );
+		for ( Spot spot : sent )
+			trackletIds.getOrAssign( spot );
+	}
+
+	/**
+	 * Returns the changes since the last call, and assumes that they are
+	 * sent to Blender before the next call. Must be called under the read
+	 * lock.
+	 */
+	public synchronized Changes collectChanges()
+	{
+		RefSet< Spot > upserts = new RefSetImp<>( graph.vertices().getRefPool() );
+		if ( rebuilt )
+		{
+			// The spots of the old graph are gone, all ids are assigned anew.
+			reset();
+			upserts.addAll( sent );
+			return new Changes( upserts, new int[ 0 ], true );
+		}
+		trackletIds.free( releasedBefore );
+		releasedBefore.clear();
+		BitSet deleted = new BitSet();
+		deleted.or( removed );
+		removed.clear();
+		removedSpots.clear();
+		Spot ref = graph.vertexRef();
+		Spot ref2 = graph.vertexRef();
+		try
+		{
+			for ( Spot spot : touched )
+			{
+				addBranchStart( upserts, spot, ref2 );
+				for ( Link edge : spot.incomingEdges() )
+					addBranchStart( upserts, edge.getSource( ref ), ref2 );
+				for ( Link edge : spot.outgoingEdges() )
+				{
+					Spot child = edge.getTarget( ref );
+					addBranchStart( upserts, child, ref2 );
+					// the child may have been a branch start, before its
+					// sibling was removed
+					removeIfNotBranchStart( deleted, child, ref2 );
+				}
+				removeIfNotBranchStart( deleted, spot, ref2 );
+			}
+			touched.clear();
+			for ( Spot spot : moved )
+			{
+				addBranchStart( upserts, spot, ref2 );
+				// the tracklets after a division start with the spot before it
+				for ( Link edge : spot.outgoingEdges() )
+				{
+					Spot child = edge.getTarget( ref );
+					if ( BranchGraphUtils.isBranchStart( child, ref2 ) )
+						upserts.add( child );
+				}
+			}
+			moved.clear();
+			for ( Spot spot : upserts )
+				trackletIds.getOrAssign( spot );
+			sent.addAll( upserts );
+			releasedBefore.or( released );
+			released.clear();
+			return new Changes( upserts, deleted.stream().toArray(), false );
+		}
+		finally
+		{
+			graph.releaseRef( ref );
+			graph.releaseRef( ref2 );
+		}
+	}
+
+	private static void addBranchStart( RefSet< Spot > upserts, Spot spot, Spot ref )
+	{
+		upserts.add( BranchGraphUtils.getBranchStart( spot, ref ) );
+	}
+
+	private void removeIfNotBranchStart( BitSet deleted, Spot spot, Spot ref )
+	{
+		if ( BranchGraphUtils.isBranchStart( spot, ref ) )
+			return;
+		int id = trackletIds.release( spot.getInternalPoolIndex() );
+		if ( id >= 0 )
+			released.set( id );
+		if ( sent.remove( spot ) && id >= 0 )
+			deleted.set( id );
+	}
+
+	@Override
+	public synchronized void graphRebuilt()
+	{
+		rebuilt = true;
+	}
+
+	@Override
+	public synchronized void vertexAdded( Spot vertex )
+	{
+		removedSpots.clear( vertex.getInternalPoolIndex() );
+		touched.add( vertex );
+	}
+
+	@Override
+	public synchronized void vertexRemoved( Spot vertex )
+	{
+		touched.remove( vertex );
+		moved.remove( vertex );
+		retagged.remove( vertex );
+		removedSpots.set( vertex.getInternalPoolIndex() );
+		// the pool index may be reused by the next added spot
+		int id = trackletIds.release( vertex.getInternalPoolIndex() );
+		if ( id >= 0 )
+			released.set( id );
+		if ( sent.remove( vertex ) && id >= 0 )
+			removed.set( id );
+	}
+
+	@Override
+	public synchronized void edgeAdded( Link edge )
+	{
+		touchEndpoints( edge );
+	}
+
+	@Override
+	public synchronized void edgeRemoved( Link edge )
+	{
+		touchEndpoints( edge );
+	}
+
+	@Override
+	public synchronized void vertexPositionChanged( Spot vertex )
+	{
+		moved.add( vertex );
+	}
+
+	public synchronized void vertexTagChanged( Spot vertex )
+	{
+		retagged.add( vertex );
+	}
+
+	/**
+	 * Returns the retagged spots that start a tracklet, and forgets all
+	 * retagged spots. Must be called under the read lock.
+	 */
+	public synchronized RefSet< Spot > collectRetaggedTrackletStarts()
+	{
+		RefSet< Spot > trackletStarts = new RefSetImp<>( graph.vertices().getRefPool() );
+		Spot ref = graph.vertexRef();
+		try
+		{
+			for ( Spot spot : retagged )
+				if ( BranchGraphUtils.isBranchStart( spot, ref ) )
+					trackletStarts.add( spot );
+			retagged.clear();
+			return trackletStarts;
+		}
+		finally
+		{
+			graph.releaseRef( ref );
+		}
+	}
+
+	/**
+	 * Returns the branch starts of the tracklets that contain a retagged
+	 * spot, and forgets all retagged spots. Used if the color changes along
+	 * a tracklet. Must be called under the read lock.
+	 */
+	public synchronized RefSet< Spot > collectRetaggedTracklets()
+	{
+		RefSet< Spot > trackletStarts = new RefSetImp<>( graph.vertices().getRefPool() );
+		Spot ref = graph.vertexRef();
+		try
+		{
+			for ( Spot spot : retagged )
+				trackletStarts.add( BranchGraphUtils.getBranchStart( spot, ref ) );
+			retagged.clear();
+			return trackletStarts;
+		}
+		finally
+		{
+			graph.releaseRef( ref );
+		}
+	}
+
+	private void touchEndpoints( Link edge )
+	{
+		Spot ref = graph.vertexRef();
+		try
+		{
+			touch( edge.getSource( ref ) );
+			touch( edge.getTarget( ref ) );
+		}
+		finally
+		{
+			graph.releaseRef( ref );
+		}
+	}
+
+	private void touch( Spot spot )
+	{
+		if ( !removedSpots.get( spot.getInternalPoolIndex() ) )
+			touched.add( spot );
+	}
+
+	/**
+	 * Tracklets to send again, and ids of tracklets to remove from
+	 * Blender. The removal must be sent first, because a new tracklet may
+	 * reuse the id of a removed one. If the graph was rebuilt, all
+	 * tracklets are removed from Blender and sent again.
+	 */
+	static class Changes
+	{
+		final RefSet< Spot > upserts;
+
+		final int[] deletedIds;
+
+		final boolean deleteAll;
+
+		Changes( RefSet< Spot > upserts, int[] deletedIds, boolean deleteAll )
+		{
+			this.upserts = upserts;
+			this.deletedIds = deletedIds;
+			this.deleteAll = deleteAll;
+		}
+
+		boolean isEmpty()
+		{
+			return upserts.isEmpty() && deletedIds.length == 0 && !deleteAll;
+		}
+	}
+}
@@ -0,0 +1,98 @@
+/*-
+ * #%L
+ * A Mastodon plugin data allows to show the embryo in Blender.
+ * %%
+ * Copyright (C) 2022 - 2025 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.blender;
+
+import org.mastodon.blender.utils.BranchGraphUtils;
+import org.mastodon.collection.RefSet;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+
+import java.util.Arrays;
+import java.util.function.ToIntFunction;
+
+/**
+ * The colors of all tracklets for one tag set. The {@link BlenderController}
+ * keeps one instance per tag set, such that switching back to a tag set
+ * doesn't look up the tags of all tracklets again.
+ */
+class TrackletColors
+{
+	/**
+	 * Sorted ids of the tracklets, see {@link TrackletIdRegistry}.
+	 */
+	final int[] ids;
+
+	final int[] colors;
+
+	private TrackletColors( int[] ids, int[] colors )
+	{
+		this.ids = ids;
+		this.colors = colors;
+	}
+
+	/**
+	 * Computes the colors of all tracklets. Must be called under the read
+	 * lock of the graph.
+	 */
+	static TrackletColors compute( ModelGraph graph, TrackletIdRegistry trackletIds, ToIntFunction< Spot > spotToColor )
+	{
+		RefSet< Spot > trackletStarts = BranchGraphUtils.getAllBranchStarts( graph );
+		int[] ids = new int[ trackletStarts.size() ];
+		int i = 0;
+		for ( Spot spot : trackletStarts )
+			ids[ i++ ] = trackletIds.getOrAssign( spot );
+		Arrays.sort( ids );
+		int[] colors = new int[ ids.length ];
+		Spot ref = graph.vertexRef();
+		try
+		{
+			for ( i = 0; i < ids.length; i++ )
+			{
+				Spot spot = graph.vertices().getRefPool().getObject( trackletIds.getPoolIndex( ids[ i ] ), ref );
+				colors[ i ] = spotToColor.applyAsInt( spot );
+			}
+		}
+		finally
+		{
+			graph.releaseRef( ref );
+		}
+		return new TrackletColors( ids, colors );
+	}
+
+	/**
+	 * Sets the color of the tracklet with the given id. Does nothing if
+	 * there is no such tracklet, e.g. if the spot is not a branch start.
+	 */
+	void update( int id, int color )
+	{
+		int i = Arrays.binarySearch( ids, id );
+		if ( i >= 0 )
+			colors[ i ] = color;
+	}
+}
@@ -0,0 +1,365 @@
+/*-
+ * #%L
+ * A Mastodon plugin data allows to show the embryo in Blender.
+ * %%
+ * Copyright (C) 2022 - 2025 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.blender;
+
+import io.grpc.MethodDescriptor;
+import io.grpc.Server;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.protobuf.ProtoUtils;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.ServerCalls;
+import io.grpc.stub.StreamObserver;
+import net.imglib2.realtransform.AffineTransform3D;
+import org.mastodon.BoundingBox;
+import org.mastodon.DataServiceGrpc;
+import org.mastodon.TrackletQuery;
+import org.mastodon.blender.utils.BranchGraphUtils;
+import org.mastodon.blender.utils.PointCloudNormalizationUtils;
+import org.mastodon.collection.RefList;
+import org.mastodon.collection.RefSet;
+import org.mastodon.collection.ref.RefArrayList;
+import org.mastodon.collection.ref.RefSetImp;
+import org.mastodon.mamut.ProjectModel;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.spatial.SpatioTemporalIndex;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * gRPC service hosted by Mastodon, that Blender queries for tracklets, see
+ * {@code DataService} in the proto file. This allows Blender to only load
+ * the part of a huge graph that the user looks at.
+ * <p>
+ * The tracklets are encoded by the {@link TrackletEncoder} while the
+ * graph's read lock is held, and sent afterwards, such that a slow Blender
+ * doesn't block editing the graph.
+ */
+class TrackletDataService
+{
+	private final ModelGraph graph;
+
+	private final SpatioTemporalIndex< Spot > index;
+
+	private final int minTimepoint;
+
+	private final int maxTimepoint;
+
+	private final int timeScalingFactor;
+
+	private final AffineTransform3D transform;
+
+	private final BufferPool bufferPool = new BufferPool( 64 << 20 );
+
+	private final BlenderAddress address = BlenderAddress.createLocal();
+
+	private final TrackletIdRegistry trackletIds;
+
+	private Server server;
+
+	TrackletDataService( ProjectModel projectModel, int timeScalingFactor, TrackletIdRegistry trackletIds )
+	{
+		this.graph = projectModel.getModel().getGraph();
+		this.trackletIds = trackletIds;
+		this.index = projectModel.getModel().getSpatioTemporalIndex();
+		this.minTimepoint = projectModel.getMinTimepoint();
+		this.maxTimepoint = projectModel.getMaxTimepoint();
+		this.timeScalingFactor = timeScalingFactor;
+		ReentrantReadWriteLock.ReadLock lock = graph.getLock().readLock();
+		lock.lock();
+		try
+		{
+			this.transform = PointCloudNormalizationUtils.getNormalizingTransform( graph.vertices() );
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	void start() throws IOException
+	{
+		MethodDescriptor< TrackletQuery, ByteBuffer > getTracklets = DataServiceGrpc.getGetTrackletsMethod()
+				.toBuilder( ProtoUtils.marshaller( TrackletQuery.getDefaultInstance() ), new ByteBufferMarshaller() )
+				.build();
+		ServerServiceDefinition service = ServerServiceDefinition.builder( DataServiceGrpc.SERVICE_NAME )
+				.addMethod( getTracklets, ServerCalls.asyncServerStreamingCall( this::getTracklets ) )
+				.build();
+		server = address.serverBuilder()
+				.compressorRegistry( MessageCompression.compressorRegistry() )
+				.addService( service )
+				.build()
+				.start();
+	}
+
+	/**
+	 * Returns the command line arguments that tell the Blender addon where
+	 * to fetch the tracklets from.
+	 */
+	List< String > addonArguments()
+	{
+		return Arrays.asList( "--mastodon-data", address.toString() );
+	}
+
+	/**
+	 * Transform applied to the coordinates of all served tracklets.
+	 */
+	AffineTransform3D getTransform()
+	{
+		return transform;
+	}
+
+	void shutdown()
+	{
+		if ( server == null )
+			return;
+		server.shutdown();
+		try
+		{
+			if ( !server.awaitTermination( 1, TimeUnit.SECONDS ) )
+				server.shutdownNow();
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			server.shutdownNow();
+		}
+	}
+
+	private void getTracklets( TrackletQuery query, StreamObserver< ByteBuffer > responseObserver )
+	{
+		List< ByteBuffer > messages = new ArrayList<>();
+		ReentrantReadWriteLock.ReadLock lock = graph.getLock().readLock();
+		lock.lock();
+		Spot ref = graph.vertexRef();
+		try (TrackletEncoder encoder = new TrackletEncoder( graph, transform, timeScalingFactor,
+				ViewServiceClient.MAX_SPOTS_PER_MESSAGE, bufferPool::acquire, messages::add ))
+		{
+			for ( int poolIndex : findTracklets( query ) )
+				encoder.encode( graph.vertices().getRefPool().getObject( poolIndex, ref ), trackletIds.getOrAssign( ref ) );
+		}
+		finally
+		{
+			graph.releaseRef( ref );
+			lock.unlock();
+		}
+		send( messages, ( ServerCallStreamObserver< ByteBuffer > ) responseObserver );
+	}
+
+	/**
+	 * Sends the messages, waiting whenever the transport is not ready. The
+	 * on-ready handler can't be used, because it is called in the thread
+	 * that is blocked here. The server serializes a message within
+	 * {@code onNext}, all buffers are returned to the pool once the call is
+	 * finished.
+	 */
+	private void send( List< ByteBuffer > messages, ServerCallStreamObserver< ByteBuffer > responseObserver )
+	{
+		try
+		{
+			for ( int i = 0; i < messages.size(); i++ )
+			{
+				while ( !responseObserver.isReady() )
+				{
+					if ( responseObserver.isCancelled() )
+						return;
+					Thread.sleep( 1 );
+				}
+				responseObserver.onNext( messages.get( i ) );
+			}
+			responseObserver.onCompleted();
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			responseObserver.onError( e );
+		}
+		finally
+		{
+			for ( ByteBuffer message : messages )
+				bufferPool.release( message );
+		}
+	}
+
+	/**
+	 * Returns the pool indices of the branch starts of all tracklets that
+	 * match the query, sorted.
+	 */
+	int[] findTracklets( TrackletQuery query )
+	{
+		RefSet< Spot > branchStarts = new RefSetImp<>( graph.vertices().getRefPool() );
+		Spot ref = graph.vertexRef();
+		Link edge = graph.edgeRef();
+		double[] position = new double[ 3 ];
+		try
+		{
+			if ( query.getLineageIdsCount() > 0 )
+			{
+				for ( Spot branchStart : lineages( query.getLineageIdsList() ) )
+					if ( anySpotMatches( query, branchStart, ref, edge, position ) )
+						branchStarts.add( branchStart );
+			}
+			else
+			{
+				for ( Spot spot : candidateSpots( query ) )
+					if ( matches( query, spot, position ) )
+						branchStarts.add( BranchGraphUtils.getBranchStart( spot, ref ) );
+			}
+			for ( int id : query.getExcludeIdsList() )
+			{
+				int poolIndex = trackletIds.getPoolIndex( id );
+				if ( poolIndex >= 0 )
+					branchStarts.remove( graph.vertices().getRefPool().getObject( poolIndex, ref ) );
+			}
+		}
+		finally
+		{
+			graph.releaseRef( ref );
+			graph.releaseRef( edge );
+		}
+		int[] ids = new int[ branchStarts.size() ];
+		int i = 0;
+		for ( Spot spot : branchStarts )
+			ids[ i++ ] = spot.getInternalPoolIndex();
+		Arrays.sort( ids );
+		return ids;
+	}
+
+	/**
+	 * Returns the spots of the time window, using the spatio-temporal index,
+	 * or all spots if there is no time window.
+	 */
+	private Iterable< Spot > candidateSpots( TrackletQuery query )
+	{
+		if ( !query.hasTimeWindow() )
+			return graph.vertices();
+		int start = Math.max( minTimepoint, Math.floorDiv( query.getTimeWindow().getStart() + timeScalingFactor - 1, timeScalingFactor ) );
+		int end = Math.min( maxTimepoint, Math.floorDiv( query.getTimeWindow().getEnd(), timeScalingFactor ) );
+		RefList< Spot > spots = new RefArrayList<>( graph.vertices().getRefPool() );
+		for ( int t = start; t <= end; t++ )
+			for ( Spot spot : index.getSpatialIndex( t ) )
+				spots.add( spot );
+		return spots;
+	}
+
+	/**
+	 * Returns the branch starts of all tracklets in the lineages of the
+	 * given tracklets.
+	 */
+	private RefSet< Spot > lineages( List< Integer > ids )
+	{
+		RefSet< Spot > result = new RefSetImp<>( graph.vertices().getRefPool() );
+		Deque< Integer > stack = new ArrayDeque<>();
+		for ( int id : ids )
+		{
+			int poolIndex = trackletIds.getPoolIndex( id );
+			if ( poolIndex >= 0 )
+				stack.push( poolIndex );
+		}
+		Spot ref = graph.vertexRef();
+		Spot ref2 = graph.vertexRef();
+		Link edge = graph.edgeRef();
+		try
+		{
+			while ( !stack.isEmpty() )
+			{
+				Spot branchStart = graph.vertices().getRefPool().getObject( stack.pop(), ref );
+				if ( !result.add( branchStart ) )
+					continue;
+				Spot end = branchEnd( branchStart, ref, edge );
+				for ( Link link : end.outgoingEdges() )
+					stack.push( link.getTarget( ref2 ).getInternalPoolIndex() );
+			}
+		}
+		finally
+		{
+			graph.releaseRef( ref );
+			graph.releaseRef( ref2 );
+			graph.releaseRef( edge );
+		}
+		return result;
+	}
+
+	private static Spot branchEnd( Spot branchStart, Spot ref, Link edge )
+	{
+		Spot spot = ref.refTo( branchStart );
+		while ( spot.outgoingEdges().size() == 1 )
+		{
+			Link link = spot.outgoingEdges().get( 0, edge );
+			spot = link.getTarget( ref );
+			if ( spot.incomingEdges().size() != 1 )
+				return link.getSource( ref );
+		}
+		return spot;
+	}
+
+	private boolean anySpotMatches( TrackletQuery query, Spot branchStart, Spot ref, Link edge, double[] position )
+	{
+		Spot spot = ref.refTo( branchStart );
+		while ( true )
+		{
+			if ( matches( query, spot, position ) )
+				return true;
+			if ( spot.outgoingEdges().size() != 1 )
+				return false;
+			spot = spot.outgoingEdges().get( 0, edge ).getTarget( ref );
+			if ( spot.incomingEdges().size() != 1 )
+				return false;
+		}
+	}
+
+	private boolean matches( TrackletQuery query, Spot spot, double[] position )
+	{
+		if ( query.hasTimeWindow() )
+		{
+			int frame = spot.getTimepoint() * timeScalingFactor;
+			if ( frame < query.getTimeWindow().getStart() || frame > query.getTimeWindow().getEnd() )
+				return false;
+		}
+		if ( query.hasBoundingBox() )
+		{
+			spot.localize( position );
+			transform.apply( position, position );
+			BoundingBox box = query.getBoundingBox();
+			return position[ 0 ] >= box.getMinX() && position[ 0 ] <= box.getMaxX()
+					&& position[ 1 ] >= box.getMinY() && position[ 1 ] <= box.getMaxY()
+					&& position[ 2 ] >= box.getMinZ() && position[ 2 ] <= box.getMaxZ();
+		}
+		return true;
+	}
+}
@@ -0,0 +1,269 @@
+/*-
+ * #%L
+ * A Mastodon plugin data allows to show the embryo in Blender.
+ * %%
+ * Copyright (C) 2022 - 2025 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.blender;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+import net.imglib2.realtransform.AffineTransform3D;
+import org.mastodon.AddMovingSpotRequest;
+import org.mastodon.ArrayFormat;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+/**
+ * Encodes tracklets as serialized {@link AddMovingSpotRequest} messages
+ * with packed coordinates and timepoints.
+ * <p>
+ * The messages are written by a {@link CodedOutputStream} directly into
+ * {@link ByteBuffer}s of at least the size of the message, taken from the
+ * given allocator, e.g. {@link BufferPool#acquire}. The finished buffers
+ * are passed to the output consumer, which is responsible for returning
+ * pooled buffers to the pool. The spots are visited using refs and
+ * a single reused {@code double[3]}, such that encoding doesn't allocate
+ * memory per spot.
+ * <p>
+ * Not thread safe. Call {@link #close()} to release the refs.
+ */
+class TrackletEncoder implements AutoCloseable
+{
+	private static final int COORDINATES_FIELD = AddMovingSpotRequest.PACKED_COORDINATES_FIELD_NUMBER;
+
+	private static final int TIMEPOINTS_FIELD = AddMovingSpotRequest.PACKED_TIMEPOINTS_FIELD_NUMBER;
+
+	private final ModelGraph graph;
+
+	private final AffineTransform3D transform;
+
+	private final int timeScalingFactor;
+
+	private final int maxSpotsPerMessage;
+
+	private final IntFunction< ByteBuffer > allocator;
+
+	private final Consumer< ByteBuffer > output;
+
+	private final Spot chunkStart;
+
+	private final Spot spot;
+
+	private final Link edge;
+
+	private final double[] position = new double[ 3 ];
+
+	TrackletEncoder( ModelGraph graph, AffineTransform3D transform, int timeScalingFactor, int maxSpotsPerMessage,
+			IntFunction< ByteBuffer > allocator, Consumer< ByteBuffer > output )
+	{
+		this.graph = graph;
+		this.transform = transform;
+		this.timeScalingFactor = timeScalingFactor;
+		this.maxSpotsPerMessage = maxSpotsPerMessage;
+		this.allocator = allocator;
+		this.output = output;
+		this.chunkStart = graph.vertexRef();
+		this.spot = graph.vertexRef();
+		this.edge = graph.edgeRef();
+	}
+
+	/**
+	 * Encodes the tracklet that starts at the given branch start. Tracklets
+	 * with more than {@code maxSpotsPerMessage} spots are split into
+	 * multiple messages.
+	 *
+	 * @param id the id of the tracklet in Blender, see {@link TrackletIdRegistry}.
+	 */
+	public void encode( Spot branchStart, int id )
+	{
+		encode( branchStart, id, false, 0 );
+	}
+
+	/**
+	 * Encodes the tracklet like {@link #encode(Spot, int)}, and stores the
+	 * given color in the first message.
+	 */
+	public void encode( Spot branchStart, int id, int color )
+	{
+		encode( branchStart, id, true, color );
+	}
+
+	private void encode( Spot branchStart, int id, boolean hasColor, int color )
+	{
+		try
+		{
+			boolean hasIncomingSpot = branchStart.incomingEdges().size() == 1; // for better visualization of cell divisions in Blender
+			int size = countSpots( branchStart, hasIncomingSpot );
+			first( branchStart, hasIncomingSpot, chunkStart );
+			for ( int from = 0; from < size; from += maxSpotsPerMessage )
+			{
+				int n = Math.min( maxSpotsPerMessage, size - from );
+				boolean isFirst = from == 0;
+				boolean hasMore = from + n < size;
+				String label = isFirst ? branchStart.getLabel() : null;
+				boolean writeColor = isFirst && hasColor;
+				ByteBuffer buffer = allocator.apply( messageSize( id, label, writeColor, color, hasMore, n ) );
+				CodedOutputStream out = CodedOutputStream.newInstance( buffer );
+				out.writeUInt32( AddMovingSpotRequest.ID_FIELD_NUMBER, id );
+				if ( label != null )
+					out.writeString( AddMovingSpotRequest.LABEL_FIELD_NUMBER, label );
+				if ( writeColor )
+					out.writeUInt32( AddMovingSpotRequest.COLOR_FIELD_NUMBER, color );
+				if ( hasMore )
+					out.writeBool( AddMovingSpotRequest.HAS_MORE_FIELD_NUMBER, true );
+				out.writeEnum( AddMovingSpotRequest.FORMAT_FIELD_NUMBER, ArrayFormat.PACKED_LITTLE_ENDIAN_VALUE );
+				writeCoordinates( out, branchStart, hasIncomingSpot, from, n );
+				writeTimepoints( out, branchStart, hasIncomingSpot, from, n );
+				out.flush();
+				buffer.flip();
+				output.accept( buffer );
+				if ( hasMore )
+					next( spot, branchStart, hasIncomingSpot && from + n - 1 == 0, chunkStart );
+			}
+		}
+		catch ( IOException e )
+		{
+			throw new UncheckedIOException( e );
+		}
+	}
+
+	private void writeCoordinates( CodedOutputStream out, Spot branchStart, boolean hasIncomingSpot, int from, int n ) throws IOException
+	{
+		out.writeTag( COORDINATES_FIELD, WireFormat.WIRETYPE_LENGTH_DELIMITED );
+		out.writeUInt32NoTag( 3 * Float.BYTES * n );
+		Spot s = spot.refTo( chunkStart );
+		for ( int i = 0; i < n; i++ )
+		{
+			if ( i > 0 )
+				s = next( s, branchStart, hasIncomingSpot && from + i - 1 == 0, spot );
+			s.localize( position );
+			transform.apply( position, position );
+			out.writeFloatNoTag( ( float ) position[ 0 ] );
+			out.writeFloatNoTag( ( float ) position[ 1 ] );
+			out.writeFloatNoTag( ( float ) position[ 2 ] );
+		}
+	}
+
+	private void writeTimepoints( CodedOutputStream out, Spot branchStart, boolean hasIncomingSpot, int from, int n ) throws IOException
+	{
+		out.writeTag( TIMEPOINTS_FIELD, WireFormat.WIRETYPE_LENGTH_DELIMITED );
+		out.writeUInt32NoTag( Integer.BYTES * n );
+		Spot s = spot.refTo( chunkStart );
+		for ( int i = 0; i < n; i++ )
+		{
+			if ( i > 0 )
+				s = next( s, branchStart, hasIncomingSpot && from + i - 1 == 0, spot );
+			out.writeFixed32NoTag( s.getTimepoint() * timeScalingFactor );
+		}
+	}
+
+	/**
+	 * Returns the number of spots in a message written by this encoder.
+	 * Only the field tags are read, the arrays are skipped.
+	 */
+	static int spotCount( ByteBuffer message )
+	{
+		try
+		{
+			CodedInputStream in = CodedInputStream.newInstance( message.duplicate() );
+			int tag;
+			while ( ( tag = in.readTag() ) != 0 )
+			{
+				if ( WireFormat.getTagFieldNumber( tag ) == TIMEPOINTS_FIELD )
+					return in.readRawVarint32() / Integer.BYTES;
+				in.skipField( tag );
+			}
+			return 0;
+		}
+		catch ( IOException e )
+		{
+			throw new UncheckedIOException( e );
+		}
+	}
+
+	private static int messageSize( int id, String label, boolean hasColor, int color, boolean hasMore, int n )
+	{
+		int size = CodedOutputStream.computeUInt32Size( AddMovingSpotRequest.ID_FIELD_NUMBER, id );
+		if ( label != null )
+			size += CodedOutputStream.computeStringSize( AddMovingSpotRequest.LABEL_FIELD_NUMBER, label );
+		if ( hasColor )
+			size += CodedOutputStream.computeUInt32Size( AddMovingSpotRequest.COLOR_FIELD_NUMBER, color );
+		if ( hasMore )
+			size += CodedOutputStream.computeBoolSize( AddMovingSpotRequest.HAS_MORE_FIELD_NUMBER, true );
+		size += CodedOutputStream.computeEnumSize( AddMovingSpotRequest.FORMAT_FIELD_NUMBER, ArrayFormat.PACKED_LITTLE_ENDIAN_VALUE );
+		size += CodedOutputStream.computeTagSize( COORDINATES_FIELD ) + CodedOutputStream.computeUInt32SizeNoTag( 3 * Float.BYTES * n ) + 3 * Float.BYTES * n;
+		size += CodedOutputStream.computeTagSize( TIMEPOINTS_FIELD ) + CodedOutputStream.computeUInt32SizeNoTag( Integer.BYTES * n ) + Integer.BYTES * n;
+		return size;
+	}
+
+	/**
+	 * Returns the number of spots in the tracklet, including the spot
+	 * before the branch start.
+	 */
+	private int countSpots( Spot branchStart, boolean hasIncomingSpot )
+	{
+		int count = hasIncomingSpot ? 2 : 1;
+		Spot s = spot.refTo( branchStart );
+		while ( s.outgoingEdges().size() == 1 )
+		{
+			s = s.outgoingEdges().get( 0, edge ).getTarget( spot );
+			if ( s.incomingEdges().size() != 1 )
+				break;
+			count++;
+		}
+		return count;
+	}
+
+	private Spot first( Spot branchStart, boolean hasIncomingSpot, Spot ref )
+	{
+		if ( hasIncomingSpot )
+			return branchStart.incomingEdges().get( 0, edge ).getSource( ref );
+		return ref.refTo( branchStart );
+	}
+
+	private Spot next( Spot current, Spot branchStart, boolean currentIsIncomingSpot, Spot ref )
+	{
+		if ( currentIsIncomingSpot )
+			return ref.refTo( branchStart );
+		return current.outgoingEdges().get( 0, edge ).getTarget( ref );
+	}
+
+	@Override
+	public void close()
+	{
+		graph.releaseRef( chunkStart );
+		graph.releaseRef( spot );
+		graph.releaseRef( edge );
+	}
+}
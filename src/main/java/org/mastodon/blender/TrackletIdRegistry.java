@@ -0,0 +1,169 @@
+/*-
+ * #%L
+ * A Mastodon plugin data allows to show the embryo in Blender.
+ * %%
+ * Copyright (C) 2022 - 2025 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.blender;
+
+import org.mastodon.mamut.model.Spot;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Assigns the ids that identify tracklets in Blender.
+ * <p>
+ * A tracklet is identified by its branch start. The id of a tracklet stays
+ * the same while the graph is edited, as long as its branch start exists
+ * and is still a branch start. The ids are dense: ids that are freed
+ * are reused, the smallest first. Unlike the pool indices of the spots,
+ * which are sparse after deletions and reused by new spots without
+ * notice, the ids can therefore index flat arrays in Blender.
+ * <p>
+ * Both directions are stored in primitive arrays. Thread safe.
+ */
+class TrackletIdRegistry
+{
+	private static final int NONE = -1;
+
+	private int[] poolIndexToId = new int[ 0 ];
+
+	private int[] idToPoolIndex = new int[ 0 ];
+
+	/**
+	 * Ids below this value have been assigned before.
+	 */
+	private int idCount = 0;
+
+	/**
+	 * Freed ids below {@link #idCount}, see {@link #free}.
+	 */
+	private final BitSet freeIds = new BitSet();
+
+	/**
+	 * Returns the id of the tracklet that starts with the given spot, and
+	 * assigns a new id if the tracklet has none yet.
+	 */
+	synchronized int getOrAssign( Spot branchStart )
+	{
+		return getOrAssign( branchStart.getInternalPoolIndex() );
+	}
+
+	private int getOrAssign( int poolIndex )
+	{
+		int id = getId( poolIndex );
+		if ( id != NONE )
+			return id;
+		id = freeIds.nextSetBit( 0 );
+		if ( id < 0 )
+			id = idCount++;
+		else
+			freeIds.clear( id );
+		if ( poolIndex >= poolIndexToId.length )
+			poolIndexToId = grow( poolIndexToId, poolIndex );
+		if ( id >= idToPoolIndex.length )
+			idToPoolIndex = grow( idToPoolIndex, id );
+		poolIndexToId[ poolIndex ] = id;
+		idToPoolIndex[ id ] = poolIndex;
+		return id;
+	}
+
+	/**
+	 * Returns the ids of the tracklets that start with the spots with the
+	 * given pool indices, see {@link #getOrAssign}.
+	 */
+	synchronized int[] getOrAssign( int[] poolIndices )
+	{
+		int[] ids = new int[ poolIndices.length ];
+		for ( int i = 0; i < poolIndices.length; i++ )
+			ids[ i ] = getOrAssign( poolIndices[ i ] );
+		return ids;
+	}
+
+	/**
+	 * @return the id of the tracklet that starts with the spot with the
+	 * given pool index, or -1 if there is none.
+	 */
+	synchronized int getId( int poolIndex )
+	{
+		return poolIndex < poolIndexToId.length ? poolIndexToId[ poolIndex ] : NONE;
+	}
+
+	/**
+	 * @return the pool index of the branch start of the tracklet with the
+	 * given id, or -1 if there is no such tracklet.
+	 */
+	synchronized int getPoolIndex( int id )
+	{
+		return id >= 0 && id < idCount ? idToPoolIndex[ id ] : NONE;
+	}
+
+	/**
+	 * Releases the id of the tracklet that starts with the spot with the
+	 * given pool index. Called when the spot is removed or is not a branch
+	 * start anymore. The id is not assigned to another tracklet, until it
+	 * is passed to {@link #free}, i.e. until Blender was told to delete the
+	 * tracklet.
+	 *
+	 * @return the released id, or -1 if the spot had no id.
+	 */
+	synchronized int release( int poolIndex )
+	{
+		int id = getId( poolIndex );
+		if ( id == NONE )
+			return NONE;
+		poolIndexToId[ poolIndex ] = NONE;
+		idToPoolIndex[ id ] = NONE;
+		return id;
+	}
+
+	/**
+	 * Allows the given released ids to be assigned to new tracklets.
+	 */
+	synchronized void free( BitSet ids )
+	{
+		freeIds.or( ids );
+	}
+
+	/**
+	 * Releases all ids. The next ids are assigned starting from zero.
+	 */
+	synchronized void clear()
+	{
+		Arrays.fill( poolIndexToId, NONE );
+		Arrays.fill( idToPoolIndex, NONE );
+		freeIds.clear();
+		idCount = 0;
+	}
+
+	private static int[] grow( int[] array, int index )
+	{
+		int length = array.length;
+		int[] grown = Arrays.copyOf( array, Math.max( index + 1, 2 * length ) );
+		Arrays.fill( grown, length, grown.length, NONE );
+		return grown;
+	}
+}
@@ -28,21 +28,34 @@
  */
 package org.mastodon.blender;
 
+import com.google.protobuf.UnsafeByteOperations;
+import io.grpc.CallOptions;
 import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
+import io.grpc.MethodDescriptor;
 import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
+import io.grpc.protobuf.ProtoUtils;
+import io.grpc.stub.AbstractStub;
+import io.grpc.stub.ClientCalls;
 import io.grpc.stub.StreamObserver;
-import net.imglib2.RealPoint;
 import net.imglib2.realtransform.AffineTransform3D;
 import org.mastodon.AddMovingSpotRequest;
+import org.mastodon.ArrayFormat;
+import org.mastodon.Capability;
 import org.mastodon.ChangeMessage;
+import org.mastodon.ClientMessage;
+import org.mastodon.ColorRuns;
+import org.mastodon.DeleteTrackletsRequest;
 import org.mastodon.Empty;
 import org.mastodon.SetActiveSpotRequest;
+import org.mastodon.SetColorRunsRequest;
 import org.mastodon.SetSpotColorsRequest;
 import org.mastodon.SetTagSetListRequest;
 import org.mastodon.SetTimePointRequest;
+import org.mastodon.SharedFileRequest;
+import org.mastodon.VersionResponse;
 import org.mastodon.ViewServiceGrpc;
+import org.mastodon.blender.setup.BlenderSettingsService;
 import org.mastodon.blender.setup.StartBlender;
 import org.mastodon.blender.utils.BranchGraphUtils;
 import org.mastodon.blender.utils.PointCloudNormalizationUtils;
@@ -52,8 +65,22 @@ import org.mastodon.mamut.model.Spot;
 import org.mastodon.model.tag.TagSetStructure;
 import org.scijava.Context;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.ToIntFunction;
 
 public class ViewServiceClient
@@ -67,48 +94,222 @@ public class ViewServiceClient
 	 **/
 	private static final int DEFAULT_TIME_SCALING_FACTOR = 10;
 
+	/**
+	 * Maximum number of spots in one {@link AddMovingSpotRequest}. Longer
+	 * tracklets are split into multiple messages, in order to stay well
+	 * below gRPC's default message size limit of 4 MB.
+	 */
+	static final int MAX_SPOTS_PER_MESSAGE = 100_000;
+
+	/**
+	 * Maximum number of id-color pairs in one {@link SetSpotColorsRequest}.
+	 */
+	static final int MAX_COLORS_PER_MESSAGE = 200_000;
+
+	/**
+	 * Maximum number of runs in one {@link SetColorRunsRequest}.
+	 */
+	static final int MAX_COLOR_RUNS_PER_MESSAGE = 100_000;
+
+	private static final int DEFAULT_MAX_REQUESTS_IN_FLIGHT = 32;
+
+	/**
+	 * Graphs with at least this number of spots are sent to Blender via a
+	 * memory-mapped file, see {@link SharedFile}.
+	 */
+	private static final int DEFAULT_SHARED_FILE_THRESHOLD = 1_000_000;
+
+	/**
+	 * Maximum number of spots and colors that were sent to Blender, but not
+	 * yet processed by Blender's main thread, see {@link CreditGate}.
+	 */
+	private static final long DEFAULT_FLOW_CONTROL_BUDGET = 2_000_000;
+
 	public static final String URL = "localhost:";
 
+	/**
+	 * Keepalive pings are sent while the channel is idle, such that a
+	 * Blender that crashed or was killed is detected within seconds.
+	 * Ten seconds is the minimum interval that gRPC allows.
+	 */
+	private static final long KEEPALIVE_TIME_SECONDS = 10;
+
+	private static final long KEEPALIVE_TIMEOUT_SECONDS = 5;
+
+	/**
+	 * Deadline for interactive calls. These are small and Blender answers
+	 * them from its gRPC threads, so a missed deadline means Blender hangs.
+	 */
+	private static final long INTERACTIVE_DEADLINE_SECONDS = 5;
+
+	/**
+	 * Deadline for a single upload message, and the maximum time an upload
+	 * waits for Blender to accept or process more data.
+	 */
+	private static final long BULK_DEADLINE_SECONDS = 60;
+
+	/**
+	 * Calls that can safely be sent again, if the first attempt failed
+	 * because Blender was not reachable.
+	 */
+	private static final List< String > IDEMPOTENT_METHODS = Arrays.asList(
+			"getVersion", "getTimePoint", "getActiveSpot", "getSelectedTagSet", "getSelectedSyncGroup",
+			"setTimePoint", "setActiveSpot", "setTagSetList", "setSpotColors", "deleteTracklets" );
+
+	/**
+	 * Channel for the interactive calls: the session stream, time point,
+	 * active spot, etc.
+	 */
+	private final ManagedChannel channel;
+
+	/**
+	 * Separate channel, and therefore separate connection, for uploading
+	 * coordinates and colors. Interactive messages never queue behind
+	 * bulk data in the HTTP/2 connection's flow control window.
+	 */
+	private final ManagedChannel bulkChannel;
+
+	private final Thread shutdownHook;
+
+	private final BlenderAddress address;
+
+	/**
+	 * The Blender process, null if Mastodon connected to a remote Blender.
+	 */
+	private final Process blenderProcess;
+
+	/**
+	 * Sends the time point and the active spot, if the addon doesn't
+	 * support the session stream. The unary calls take a network round
+	 * trip, which must not block the event dispatch thread.
+	 */
+	private final LatestValueSender sender;
+
+	private final AtomicBoolean closed = new AtomicBoolean( false );
+
 	private final ViewServiceGrpc.ViewServiceBlockingStub blockingStub;
 
 	private final ViewServiceGrpc.ViewServiceStub nonBlockingStub;
 
+	private final ViewServiceGrpc.ViewServiceBlockingStub bulkBlockingStub;
+
+	private final ViewServiceGrpc.ViewServiceFutureStub bulkFutureStub;
+
+	/**
+	 * Bidirectional stream used for all interactive calls and for receiving
+	 * change events. Bulk uploads use separate calls. Null if the addon
+	 * doesn't support it, the unary calls are used instead.
+	 */
+	private final ViewServiceSession session;
+
+	/**
+	 * Same as the addMovingSpots method, but takes the pre-encoded
+	 * messages produced by the {@link TrackletEncoder}.
+	 */
+	private final MethodDescriptor< ByteBuffer, Empty > addMovingSpotsEncoded;
+
+	/**
+	 * Stops uploads while Blender's main thread is behind. Null if the addon
+	 * doesn't support flow control.
+	 */
+	private final CreditGate creditGate;
+
+	private final ThreadLocal< double[] > position = ThreadLocal.withInitial( () -> new double[ 3 ] );
+
+	/**
+	 * Transform applied to the coordinates by the last
+	 * {@link #sendCoordinates}. Tracklets sent later must use the same.
+	 */
+	private volatile AffineTransform3D coordinateTransform;
+
+	/**
+	 * Names of the tag sets that were last sent to Blender.
+	 */
+	private List< String > sentTagSetNames;
+
+	/**
+	 * Colors that Blender knows. Also the lock for sending colors.
+	 */
+	private final SentColors sentColors = new SentColors();
+
+	/**
+	 * Color runs that Blender knows, guarded by {@link #sentColors}.
+	 */
+	private final SentColorRuns sentColorRuns = new SentColorRuns();
+
 	private final Listener listener;
 
 	private final int timeScalingFactor;
 
-	public static void waitForConnection( int port )
+	/**
+	 * Ids of the tracklets in Blender.
+	 */
+	private final TrackletIdRegistry trackletIds;
+
+	private boolean blockingMode = false;
+
+	private int maxRequestsInFlight = DEFAULT_MAX_REQUESTS_IN_FLIGHT;
+
+	private int encodingParallelism = Runtime.getRuntime().availableProcessors();
+
+	private int sharedFileThreshold = DEFAULT_SHARED_FILE_THRESHOLD;
+
+	private String compression = MessageCompression.NONE;
+
+	/**
+	 * Protocol features supported by the addon, reported by getVersion.
+	 */
+	private final Set< Capability > capabilities;
+
+	/**
+	 * Waits until the Mastodon addon in Blender responds on the given
+	 * channel, and checks that it is compatible.
+	 *
+	 * @return the version and capabilities reported by the addon.
+	 */
+	public static VersionResponse waitForConnection( ManagedChannel channel )
 	{
-		ManagedChannel channel = ManagedChannelBuilder.forTarget( URL + port ).usePlaintext().build();
-		try
-		{
-			String version = ViewServiceGrpc
-					.newBlockingStub( channel )
-					.withWaitForReady()
-					.withDeadlineAfter( 20, TimeUnit.SECONDS )
-					.getVersion( Empty.newBuilder().build() )
-					.getVersion();
-			if ( !version.equals( "0.1.0" ) )
-				throw new RuntimeException( "Version of Mastodon plugin does not match." );
-		}
-		finally
-		{
-			channel.shutdown();
-		}
+		VersionResponse version = ViewServiceGrpc
+				.newBlockingStub( channel )
+				.withWaitForReady()
+				.withDeadlineAfter( 20, TimeUnit.SECONDS )
+				.getVersion( Empty.newBuilder().build() );
+		getCapabilities( version );
+		return version;
 	}
 
-	public static void closeBlender( int port )
+	/**
+	 * Returns the protocol capabilities of the addon. Addons that predate
+	 * the handshake report version "0.1.0" and no capabilities, they only
+	 * support the unary calls.
+	 */
+	static Set< Capability > getCapabilities( VersionResponse version )
+	{
+		if ( version.getProtocolVersion() == 0 && !version.getVersion().equals( "0.1.0" ) )
+			throw new RuntimeException( "Version of Mastodon plugin does not match." );
+		Set< Capability > capabilities = EnumSet.noneOf( Capability.class );
+		for ( Capability capability : version.getCapabilitiesList() )
+			if ( capability != Capability.UNRECOGNIZED )
+				capabilities.add( capability );
+		return capabilities;
+	}
+
+	/**
+	 * Shuts down the channel, and waits a short time for pending calls to
+	 * finish before they are canceled.
+	 */
+	public static void shutdown( ManagedChannel channel )
 	{
-		ManagedChannel channel = ManagedChannelBuilder.forTarget( URL + port ).usePlaintext().build();
+		channel.shutdown();
 		try
 		{
-			ViewServiceGrpc
-					.newBlockingStub( channel )
-					.closeAll( Empty.newBuilder().build() );
+			if ( !channel.awaitTermination( 1, TimeUnit.SECONDS ) )
+				channel.shutdownNow();
 		}
-		finally
+		catch ( InterruptedException e )
 		{
-			channel.shutdown();
+			Thread.currentThread().interrupt();
+			channel.shutdownNow();
 		}
 	}
 
@@ -118,44 +319,358 @@ public class ViewServiceClient
 	}
 
 	public ViewServiceClient( final Context context, final Listener listener, final int timeScalingFactor )
+	{
+		this( context, listener, timeScalingFactor, Collections.emptyList() );
+	}
+
+	/**
+	 * Starts Blender and connects to it. If a remote Blender is configured
+	 * in the {@link BlenderSettingsService}, connects to the remote Blender
+	 * instead.
+	 *
+	 * @param addonArguments additional command line arguments for the
+	 *                       Mastodon addon in Blender. Ignored for a
+	 *                       remote Blender.
+	 */
+	public ViewServiceClient( final Context context, final Listener listener, final int timeScalingFactor, final List< String > addonArguments )
+	{
+		this( context, listener, timeScalingFactor, addonArguments, new TrackletIdRegistry() );
+	}
+
+	/**
+	 * @param trackletIds assigns the ids of the tracklets, shared with the
+	 *                    other components that talk about tracklets.
+	 */
+	ViewServiceClient( final Context context, final Listener listener, final int timeScalingFactor, final List< String > addonArguments,
+			final TrackletIdRegistry trackletIds )
 	{
 		this.listener = listener;
 		this.timeScalingFactor = timeScalingFactor;
-		int port = StartBlender.getFreePort();
+		this.trackletIds = trackletIds;
+		BlenderAddress remoteAddress = context.service( BlenderSettingsService.class ).getRemoteAddress();
+		address = remoteAddress != null ? remoteAddress : BlenderAddress.createLocal();
+		channel = buildChannel( address );
+		bulkChannel = buildChannel( address );
+		shutdownHook = new Thread( () -> {
+			channel.shutdownNow();
+			bulkChannel.shutdownNow();
+		} );
+		Runtime.getRuntime().addShutdownHook( shutdownHook );
 		try
 		{
-			StartBlender.startBlender( context, port );
+			if ( address.isLocal() )
+				blenderProcess = StartBlender.startBlender( context, address, channel, addonArguments );
+			else
+			{
+				waitForConnection( channel );
+				blenderProcess = null;
+			}
 		}
 		catch ( Throwable throwable )
 		{
+			releaseChannel();
+			if ( !address.isLocal() )
+				throw new StartBlenderException( "Failed to connect to Blender at " + address + ".", throwable );
 			throw new StartBlenderException( throwable );
 		}
-		ManagedChannel channel = ManagedChannelBuilder.forTarget( URL + port ).usePlaintext().build();
-		Runtime.getRuntime().addShutdownHook( new Thread( channel::shutdown ) );
+		sender = new LatestValueSender( this::onConnectionError );
 		blockingStub = ViewServiceGrpc.newBlockingStub( channel );
+		capabilities = getCapabilities( interactiveStub().getVersion( Empty.newBuilder().build() ) );
 		nonBlockingStub = ViewServiceGrpc.newStub( channel );
+		bulkBlockingStub = ViewServiceGrpc.newBlockingStub( bulkChannel );
+		bulkFutureStub = ViewServiceGrpc.newFutureStub( bulkChannel );
+		addMovingSpotsEncoded = ViewServiceGrpc.getAddMovingSpotsMethod()
+				.toBuilder( new ByteBufferMarshaller(), ProtoUtils.marshaller( Empty.getDefaultInstance() ) )
+				.build();
+		session = capabilities.contains( Capability.SESSION )
+				? new ViewServiceSession( nonBlockingStub, this::processChangeMessage, this::onConnectionError )
+				: null;
+		creditGate = session != null && capabilities.contains( Capability.FLOW_CONTROL )
+				? new CreditGate( DEFAULT_FLOW_CONTROL_BUDGET, BULK_DEADLINE_SECONDS, TimeUnit.SECONDS )
+				: null;
+		if ( creditGate != null )
+		{
+			session.setCreditListener( creditGate::grant );
+			session.send( ClientMessage.newBuilder().setEnableFlowControl( Empty.newBuilder().build() ) );
+		}
+		setCompression( context.service( BlenderSettingsService.class ).getCompression() );
+	}
+
+	/**
+	 * If set to true, {@link #sendTracklets} and {@link #sendColors} send
+	 * one request after the other and wait for each response. This is slow,
+	 * but useful for debugging.
+	 */
+	public void setBlockingMode( boolean blockingMode )
+	{
+		this.blockingMode = blockingMode;
+	}
+
+	/**
+	 * Sets the maximum number of requests that {@link #sendColors} keeps in
+	 * flight, if not in blocking mode.
+	 */
+	public void setMaxRequestsInFlight( int maxRequestsInFlight )
+	{
+		this.maxRequestsInFlight = maxRequestsInFlight;
+	}
+
+	/**
+	 * Sets the number of threads used by {@link #sendCoordinates} to encode
+	 * the tracklets, if not in blocking mode.
+	 */
+	public void setEncodingParallelism( int encodingParallelism )
+	{
+		this.encodingParallelism = encodingParallelism;
+	}
+
+	/**
+	 * Sets the number of spots above which {@link #sendCoordinates} and
+	 * {@link #sendColors} write the data into a memory-mapped file, which is
+	 * read by Blender, instead of sending it over gRPC. Not used in blocking
+	 * mode.
+	 */
+	public void setSharedFileThreshold( int sharedFileThreshold )
+	{
+		this.sharedFileThreshold = sharedFileThreshold;
+	}
+
+	/**
+	 * Sets the maximum number of spots and colors that may be queued in
+	 * Blender, waiting for the main thread. Has no effect if the addon
+	 * doesn't support flow control.
+	 */
+	public void setFlowControlBudget( long budget )
+	{
+		if ( creditGate != null )
+			creditGate.setBudget( budget );
+	}
+
+	private void acquireCredits( long items )
+	{
+		if ( creditGate != null )
+			creditGate.acquire( items );
+	}
+
+	/**
+	 * Sets the message compression used for uploading coordinates and
+	 * colors: "none", "gzip" or "deflate". Small interactive messages are
+	 * never compressed.
+	 */
+	public void setCompression( String compression )
+	{
+		if ( !MessageCompression.ALL.contains( compression ) )
+			throw new IllegalArgumentException( "Unknown compression: " + compression );
+		this.compression = compression;
+	}
+
+	private < S extends AbstractStub< S > > S compressed( S stub )
+	{
+		return compression.equals( MessageCompression.NONE ) ? stub : stub.withCompression( compression );
+	}
+
+	/**
+	 * Blocking stub for the interactive calls, with a deadline for each call.
+	 */
+	private ViewServiceGrpc.ViewServiceBlockingStub interactiveStub()
+	{
+		return blockingStub.withDeadlineAfter( INTERACTIVE_DEADLINE_SECONDS, TimeUnit.SECONDS );
+	}
+
+	/**
+	 * Blocking stub for uploading a single message of coordinates or
+	 * colors, with a deadline for each call.
+	 */
+	private ViewServiceGrpc.ViewServiceBlockingStub bulkStub()
+	{
+		return compressed( bulkBlockingStub ).withDeadlineAfter( BULK_DEADLINE_SECONDS, TimeUnit.SECONDS );
+	}
+
+	private CallOptions compressedCallOptions()
+	{
+		return compression.equals( MessageCompression.NONE ) ? CallOptions.DEFAULT : CallOptions.DEFAULT.withCompression( compression );
+	}
+
+	/**
+	 * Asks Blender to quit, and closes the connection.
+	 */
+	public void closeBlender()
+	{
+		try
+		{
+			interactiveStub().closeAll( Empty.newBuilder().build() );
+		}
+		finally
+		{
+			close();
+		}
+	}
+
+	/**
+	 * Ends the session with Blender. Closes the session stream, shuts down
+	 * the channel and removes the shutdown hook. Does nothing if the
+	 * session was already closed.
+	 */
+	public void close()
+	{
+		if ( !closed.compareAndSet( false, true ) )
+			return;
+		if ( session != null )
+			session.close();
+		if ( creditGate != null )
+			creditGate.close();
+		sender.shutdown();
+		releaseChannel();
+	}
+
+	/**
+	 * @return true if Blender was started by Mastodon on this computer.
+	 */
+	public boolean isLocal()
+	{
+		return address.isLocal();
+	}
+
+	public boolean isClosed()
+	{
+		return closed.get();
+	}
+
+	/**
+	 * Returns true if Blender has exited with exit code zero, which means
+	 * the user closed Blender. Returns false if Blender crashed, or still
+	 * runs but doesn't respond. Waits a short time for Blender to exit.
+	 * Always returns false for a remote Blender.
+	 */
+	public boolean hasBlenderExitedNormally()
+	{
+		if ( blenderProcess == null )
+			return false;
+		try
+		{
+			return blenderProcess.waitFor( 1, TimeUnit.SECONDS ) && blenderProcess.exitValue() == 0;
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Kills Blender, if it is still running. Used before Blender is
+	 * restarted, if it doesn't respond anymore. Does nothing for a remote
+	 * Blender.
+	 */
+	public void killBlender()
+	{
+		if ( blenderProcess != null )
+			blenderProcess.destroyForcibly();
+	}
+
+	private void releaseChannel()
+	{
+		try
+		{
+			Runtime.getRuntime().removeShutdownHook( shutdownHook );
+		}
+		catch ( IllegalStateException e )
+		{
+			// the JVM is shutting down, the hook releases the channel
+			return;
+		}
+		shutdown( channel );
+		shutdown( bulkChannel );
+	}
+
+	private static ManagedChannel buildChannel( BlenderAddress address )
+	{
+		return address.channelBuilder()
+				.keepAliveTime( KEEPALIVE_TIME_SECONDS, TimeUnit.SECONDS )
+				.keepAliveTimeout( KEEPALIVE_TIMEOUT_SECONDS, TimeUnit.SECONDS )
+				.keepAliveWithoutCalls( true )
+				.compressorRegistry( MessageCompression.compressorRegistry() )
+				.decompressorRegistry( MessageCompression.decompressorRegistry() )
+				.defaultServiceConfig( retryServiceConfig() )
+				.enableRetry()
+				.build();
+	}
+
+	/**
+	 * Service config that retries the {@link #IDEMPOTENT_METHODS} with
+	 * exponential backoff, if they fail with {@code UNAVAILABLE}.
+	 */
+	private static Map< String, ? > retryServiceConfig()
+	{
+		List< Map< String, String > > names = new ArrayList<>();
+		for ( String method : IDEMPOTENT_METHODS )
+		{
+			Map< String, String > name = new HashMap<>();
+			name.put( "service", ViewServiceGrpc.SERVICE_NAME );
+			name.put( "method", method );
+			names.add( name );
+		}
+		Map< String, Object > retryPolicy = new HashMap<>();
+		retryPolicy.put( "maxAttempts", 4.0 );
+		retryPolicy.put( "initialBackoff", "0.1s" );
+		retryPolicy.put( "maxBackoff", "1s" );
+		retryPolicy.put( "backoffMultiplier", 2.0 );
+		retryPolicy.put( "retryableStatusCodes", Collections.singletonList( "UNAVAILABLE" ) );
+		Map< String, Object > methodConfig = new HashMap<>();
+		methodConfig.put( "name", names );
+		methodConfig.put( "retryPolicy", retryPolicy );
+		return Collections.singletonMap( "methodConfig", Collections.singletonList( methodConfig ) );
 	}
 
 	// getters
 
 	public int receiveSyncGroupIndex()
 	{
-		return blockingStub.getSelectedSyncGroup( Empty.newBuilder().build() ).getIndex();
+		if ( session == null )
+			return interactiveStub().getSelectedSyncGroup( Empty.newBuilder().build() ).getIndex();
+		return session.call( ClientMessage.newBuilder().setGetSelectedSyncGroup( Empty.newBuilder().build() ), INTERACTIVE_DEADLINE_SECONDS, TimeUnit.SECONDS )
+				.getSelectedSyncGroup().getIndex();
 	}
 
 	public int receiveTimepoint()
 	{
-		return Math.round( ( float ) blockingStub.getTimePoint( Empty.newBuilder().build() ).getTimePoint() / timeScalingFactor );
+		if ( session == null )
+			return toMastodonTimepoint( interactiveStub().getTimePoint( Empty.newBuilder().build() ).getTimePoint() );
+		return toMastodonTimepoint( session.call( ClientMessage.newBuilder().setGetTimePoint( Empty.newBuilder().build() ), INTERACTIVE_DEADLINE_SECONDS, TimeUnit.SECONDS )
+				.getTimePoint().getTimePoint() );
+	}
+
+	private int toMastodonTimepoint( int blenderFrame )
+	{
+		return Math.round( ( float ) blenderFrame / timeScalingFactor );
 	}
 
 	public int receiveActiveSpotId()
 	{
-		return blockingStub.getActiveSpot( Empty.newBuilder().build() ).getId();
+		if ( session == null )
+			return interactiveStub().getActiveSpot( Empty.newBuilder().build() ).getId();
+		return session.call( ClientMessage.newBuilder().setGetActiveSpot( Empty.newBuilder().build() ), INTERACTIVE_DEADLINE_SECONDS, TimeUnit.SECONDS )
+				.getActiveSpot().getId();
 	}
 
 	public TagSetStructure.TagSet receiveTagSet(TagSetStructure tagSetStructure)
 	{
-		int index = blockingStub.getSelectedTagSet( Empty.newBuilder().build() ).getIndex();
+		return getTagSet( tagSetStructure, receiveTagSetIndex() );
+	}
+
+	public int receiveTagSetIndex()
+	{
+		if ( session == null )
+			return interactiveStub().getSelectedTagSet( Empty.newBuilder().build() ).getIndex();
+		return session.call( ClientMessage.newBuilder().setGetSelectedTagSet( Empty.newBuilder().build() ), INTERACTIVE_DEADLINE_SECONDS, TimeUnit.SECONDS )
+				.getSelectedTagSet().getIndex();
+	}
+
+	/**
+	 * Returns the tag set with the given index, or null if the index is out of bounds.
+	 */
+	public static TagSetStructure.TagSet getTagSet( TagSetStructure tagSetStructure, int index )
+	{
 		List<TagSetStructure.TagSet> tagSets = tagSetStructure.getTagSets();
 		return index >= 0 && index < tagSets.size() ? tagSets.get( index ) : null;
 	}
@@ -164,54 +679,605 @@ public class ViewServiceClient
 
 	public void sendActiveSpotId( int id )
 	{
-		blockingStub.setActiveSpot( SetActiveSpotRequest.newBuilder().setId( id ).build() );
+		SetActiveSpotRequest request = SetActiveSpotRequest.newBuilder().setId( id ).build();
+		if ( session == null )
+			sender.submit( "setActiveSpot", () -> interactiveStub().setActiveSpot( request ) );
+		else
+			session.send( ClientMessage.newBuilder().setSetActiveSpot( request ) );
 	}
 
-	public void sendTagSetList( List<TagSetStructure.TagSet> tagSetList )
+	/**
+	 * Sends the names of the tag sets. Does nothing if the names are the
+	 * same as the last time.
+	 */
+	public synchronized void sendTagSetList( List<TagSetStructure.TagSet> tagSetList )
 	{
 		SetTagSetListRequest.Builder request = SetTagSetListRequest.newBuilder();
 		for(TagSetStructure.TagSet tagSet : tagSetList )
 			request.addTagSetNames(tagSet.getName());
-		blockingStub.setTagSetList(request.build());
+		if ( request.getTagSetNamesList().equals( sentTagSetNames ) )
+			return;
+		if ( session == null )
+			interactiveStub().setTagSetList( request.build() );
+		else
+			session.send( ClientMessage.newBuilder().setSetTagSetList( request ) );
+		sentTagSetNames = new ArrayList<>( request.getTagSetNamesList() );
 	}
 
 	public void sendTimepoint( int timePoint )
 	{
 		//System.out.println("Mastodon -> Blender: set time point to " + timePoint);
-		blockingStub.setTimePoint( SetTimePointRequest.newBuilder()
+		SetTimePointRequest request = SetTimePointRequest.newBuilder()
 				.setTimepoint( timePoint * timeScalingFactor )
-				.build() );
+				.build();
+		if ( session == null )
+			sender.submit( "setTimePoint", () -> interactiveStub().setTimePoint( request ) );
+		else
+			session.send( ClientMessage.newBuilder().setSetTimePoint( request ) );
 	}
 
 	public void sendCoordinates( ModelGraph graph )
 	{
-		AffineTransform3D transform = PointCloudNormalizationUtils.getNormalizingTransform( graph.vertices() );
-		for ( Spot spot : BranchGraphUtils.getAllBranchStarts( graph ) )
-			transferTracklet( graph, spot, transform );
+		sendTracklets( graph, null );
+	}
+
+	/**
+	 * Sends all tracklets, together with their colors. The branch starts
+	 * are computed only once, for both the coordinates and the colors. If
+	 * the addon has the {@link Capability#TRACKLET_COLORS} capability, each
+	 * tracklet carries its color, such that the spheres appear with their
+	 * final color. Otherwise, the colors are sent right after the
+	 * tracklets.
+	 * <p>
+	 * The read lock of the graph is only held while the tracklets are
+	 * encoded, not while they are sent. Edits made meanwhile are recorded
+	 * by the {@link TrackletChangeTracker} and sent afterwards.
+	 *
+	 * @param spotToColor the color of the tracklets, or null to send only
+	 *                    the coordinates.
+	 */
+	public void sendTracklets( ModelGraph graph, ToIntFunction< Spot > spotToColor )
+	{
+		int[] ids;
+		int[] colors;
+		boolean withColors;
+		Runnable upload;
+		ReentrantReadWriteLock.ReadLock lock = graph.getLock().readLock();
+		lock.lock();
+		try
+		{
+			AffineTransform3D transform = PointCloudNormalizationUtils.getNormalizingTransform( graph.vertices() );
+			coordinateTransform = transform;
+			// the tracklets are created again, with default colors
+			synchronized ( sentColors )
+			{
+				sentColors.clear();
+				sentColorRuns.clear();
+			}
+			int[] branchStarts = sortedPoolIndices( BranchGraphUtils.getAllBranchStarts( graph ) );
+			ids = trackletIds.getOrAssign( branchStarts );
+			colors = spotToColor == null ? null : colors( graph, branchStarts, spotToColor );
+			withColors = colors != null && capabilities.contains( Capability.TRACKLET_COLORS );
+			upload = prepareTracklets( graph, branchStarts, ids, withColors ? colors : null, transform );
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		// edits in Mastodon don't wait for the network
+		upload.run();
+		if ( withColors )
+			synchronized ( sentColors )
+			{
+				sentColors.update( ids, colors );
+			}
+		else if ( colors != null )
+			sendColors( graph, ids, colors );
+	}
+
+	/**
+	 * Encodes the tracklets, must be called under the read lock of the
+	 * graph. The returned upload sends them without accessing the graph,
+	 * such that it can run after the lock is released.
+	 */
+	private Runnable prepareTracklets( ModelGraph graph, int[] branchStarts, int[] ids, int[] colors, AffineTransform3D transform )
+	{
+		if ( blockingMode || !capabilities.contains( Capability.PACKED_ARRAYS ) )
+		{
+			List< AddMovingSpotRequest > requests = createTrackletRequests( graph, branchStarts, colors, transform );
+			return () -> sendCoordinatesBlocking( requests );
+		}
+		if ( useSharedFile( graph ) )
+		{
+			SharedFileRequest request = writeSharedFile( graph, branchStarts, ids, transform );
+			if ( request != null )
+				return () -> sendCoordinatesViaSharedFile( graph, request, ids, colors );
+		}
+		if ( capabilities.contains( Capability.STREAMING_UPLOAD ) )
+		{
+			List< ByteBuffer > messages = encodeTracklets( graph, branchStarts, ids, colors, transform );
+			return () -> sendCoordinatesStreaming( messages );
+		}
+		List< AddMovingSpotRequest > requests = createTrackletRequests( graph, branchStarts, colors, transform );
+		return () -> sendCoordinatesPipelined( requests );
+	}
+
+	private static int[] colors( ModelGraph graph, int[] branchStarts, ToIntFunction< Spot > spotToColor )
+	{
+		int[] colors = new int[ branchStarts.length ];
+		Spot ref = graph.vertexRef();
+		try
+		{
+			for ( int i = 0; i < branchStarts.length; i++ )
+				colors[ i ] = spotToColor.applyAsInt( graph.vertices().getRefPool().getObject( branchStarts[ i ], ref ) );
+		}
+		finally
+		{
+			graph.releaseRef( ref );
+		}
+		return colors;
+	}
+
+	/**
+	 * @return the transform used by the last {@link #sendCoordinates}, null
+	 * if the coordinates weren't sent yet.
+	 */
+	public AffineTransform3D getCoordinateTransform()
+	{
+		return coordinateTransform;
+	}
+
+	/**
+	 * @return true if the addon can replace and delete single tracklets,
+	 * see {@link #prepareUpsert} and {@link #deleteTracklets}.
+	 */
+	public boolean supportsLiveUpdates()
+	{
+		return capabilities.contains( Capability.LIVE_UPDATES );
+	}
+
+	/**
+	 * Encodes the given tracklets, must be called under the read lock of
+	 * the graph. The returned upload sends them to Blender, tracklets that
+	 * Blender already knows are replaced. The upload doesn't access the
+	 * graph, such that it can run after the lock is released.
+	 *
+	 * @param transform the transform of the coordinates that Blender knows.
+	 */
+	public Runnable prepareUpsert( ModelGraph graph, RefSet< Spot > trackletStarts, AffineTransform3D transform )
+	{
+		List< AddMovingSpotRequest > chunks = new ArrayList<>();
+		for ( Spot spot : trackletStarts )
+			chunks.addAll( splitIntoChunks( createTrackletRequest( graph, spot, transform ) ) );
+		return () -> upsertTracklets( chunks );
+	}
+
+	private void upsertTracklets( List< AddMovingSpotRequest > chunks )
+	{
+		StreamingUpload< AddMovingSpotRequest > upload = new StreamingUpload<>( BULK_DEADLINE_SECONDS, TimeUnit.SECONDS );
+		compressed( ViewServiceGrpc.newStub( bulkChannel ) ).upsertTracklets( upload );
+		try
+		{
+			for ( AddMovingSpotRequest chunk : chunks )
+			{
+				acquireCredits( chunk.getPackedTimepoints().size() / Integer.BYTES );
+				upload.send( chunk );
+			}
+		}
+		catch ( RuntimeException e )
+		{
+			upload.cancel( e );
+			throw e;
+		}
+		upload.finish();
+		// Blender clears the color animation of a replaced tracklet
+		synchronized ( sentColors )
+		{
+			sentColorRuns.forget( trackletIds( chunks ) );
+		}
+	}
+
+	/**
+	 * Returns the ids of the tracklets in the given chunks, in order.
+	 * The chunks of a tracklet follow each other.
+	 */
+	static int[] trackletIds( List< AddMovingSpotRequest > chunks )
+	{
+		int[] ids = new int[ chunks.size() ];
+		int n = 0;
+		for ( AddMovingSpotRequest chunk : chunks )
+			if ( n == 0 || ids[ n - 1 ] != chunk.getId() )
+				ids[ n++ ] = chunk.getId();
+		return Arrays.copyOf( ids, n );
+	}
+
+	/**
+	 * Removes the tracklets with the given ids from Blender.
+	 *
+	 * @param all if true, all tracklets are removed.
+	 */
+	public void deleteTracklets( int[] ids, boolean all )
+	{
+		DeleteTrackletsRequest.Builder request = DeleteTrackletsRequest.newBuilder().setAll( all );
+		for ( int id : ids )
+			request.addIds( id );
+		bulkStub().deleteTracklets( request.build() );
+		synchronized ( sentColors )
+		{
+			if ( all )
+			{
+				sentColors.clear();
+				sentColorRuns.clear();
+			}
+			else
+			{
+				sentColors.forget( ids );
+				sentColorRuns.forget( ids );
+			}
+		}
+	}
+
+	private List< AddMovingSpotRequest > createTrackletRequests( ModelGraph graph, int[] branchStarts, int[] colors, AffineTransform3D transform )
+	{
+		List< AddMovingSpotRequest > requests = new ArrayList<>( branchStarts.length );
+		for ( int i = 0; i < branchStarts.length; i++ )
+			requests.add( createTrackletRequest( graph, branchStarts[ i ], colors, i, transform ) );
+		return requests;
+	}
+
+	private void sendCoordinatesBlocking( List< AddMovingSpotRequest > requests )
+	{
+		boolean packed = capabilities.contains( Capability.PACKED_ARRAYS );
+		for ( AddMovingSpotRequest request : requests )
+		{
+			if ( packed )
+				for ( AddMovingSpotRequest chunk : splitIntoChunks( request ) )
+				{
+					acquireCredits( chunk.getPackedTimepoints().size() / Integer.BYTES );
+					bulkStub().addMovingSpot( chunk );
+				}
+			else
+			{
+				acquireCredits( request.getPackedTimepoints().size() / Integer.BYTES );
+				bulkStub().addMovingSpot( toRepeatedArrays( request ) );
+			}
+		}
+	}
+
+	/**
+	 * Used if the addon supports packed arrays, but not the streaming upload.
+	 */
+	private void sendCoordinatesPipelined( List< AddMovingSpotRequest > requests )
+	{
+		PipelinedSender sender = new PipelinedSender( maxRequestsInFlight );
+		ViewServiceGrpc.ViewServiceFutureStub stub = compressed( bulkFutureStub );
+		for ( AddMovingSpotRequest request : requests )
+		{
+			acquireCredits( request.getPackedTimepoints().size() / Integer.BYTES );
+			sender.send( splitIntoChunks( request ), chunk -> stub.withDeadlineAfter( BULK_DEADLINE_SECONDS, TimeUnit.SECONDS ).addMovingSpot( chunk ) );
+		}
+		sender.flush();
+	}
+
+	/**
+	 * Encodes the tracklets in parallel, must be called under the read
+	 * lock of the graph. All messages are kept until they are sent after
+	 * the lock is released, so they take memory proportional to the graph
+	 * anyway. They are written into heap buffers of the exact message
+	 * size, pooled buffers would be held for the whole upload, and copying
+	 * them out of the pool would only add garbage.
+	 */
+	private List< ByteBuffer > encodeTracklets( ModelGraph graph, int[] branchStarts, int[] ids, int[] colors, AffineTransform3D transform )
+	{
+		List< ByteBuffer > messages = new ArrayList<>();
+		ParallelTrackletEncoder encoder = new ParallelTrackletEncoder( encodingParallelism, transform, timeScalingFactor, MAX_SPOTS_PER_MESSAGE, ByteBuffer::allocate );
+		encoder.encode( graph, branchStarts, ids, colors, messages::add );
+		return messages;
+	}
+
+	private void sendCoordinatesStreaming( List< ByteBuffer > messages )
+	{
+		StreamingUpload< ByteBuffer > upload = new StreamingUpload<>( BULK_DEADLINE_SECONDS, TimeUnit.SECONDS );
+		ClientCalls.asyncClientStreamingCall( bulkChannel.newCall( addMovingSpotsEncoded, compressedCallOptions() ), upload );
+		try
+		{
+			for ( ByteBuffer message : messages )
+			{
+				acquireCredits( TrackletEncoder.spotCount( message ) );
+				upload.send( message );
+			}
+		}
+		catch ( RuntimeException e )
+		{
+			upload.cancel( e );
+			throw e;
+		}
+		upload.finish();
+	}
+
+	private boolean useSharedFile( ModelGraph graph )
+	{
+		return !blockingMode && address.isLocal() && capabilities.contains( Capability.SHARED_FILE )
+				&& graph.vertices().size() >= sharedFileThreshold;
+	}
+
+	/**
+	 * Writes the tracklets to a shared file, must be called under the read
+	 * lock of the graph.
+	 *
+	 * @return null if the tracklets could not be written to a shared file.
+	 */
+	private SharedFileRequest writeSharedFile( ModelGraph graph, int[] branchStarts, int[] ids, AffineTransform3D transform )
+	{
+		try
+		{
+			return SharedFile.writeTracklets( graph, branchStarts, ids, transform, timeScalingFactor );
+		}
+		catch ( IOException e )
+		{
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	private void sendCoordinatesViaSharedFile( ModelGraph graph, SharedFileRequest request, int[] ids, int[] colors )
+	{
+		try
+		{
+			// Blender keeps the colors of unknown tracklets until they are added
+			if ( colors != null )
+				sendAllColors( graph, ids, colors );
+			bulkBlockingStub.withDeadlineAfter( BULK_DEADLINE_SECONDS, TimeUnit.SECONDS ).addMovingSpotsFromFile( request );
+		}
+		finally
+		{
+			SharedFile.delete( request );
+		}
+	}
+
+	private static int[] sortedPoolIndices( RefSet< Spot > spots )
+	{
+		int[] indices = new int[ spots.size() ];
+		int i = 0;
+		for ( Spot spot : spots )
+			indices[ i++ ] = spot.getInternalPoolIndex();
+		Arrays.sort( indices );
+		return indices;
 	}
 
 	public void sendColors( ModelGraph graph, ToIntFunction<Spot> spotToColor )
 	{
+		prepareColors( graph, BranchGraphUtils.getAllBranchStarts( graph ), spotToColor ).run();
+	}
+
+	/**
+	 * Computes the colors of the given tracklets, must be called under the
+	 * read lock of the graph. The returned task sends them, it can run
+	 * after the lock is released.
+	 */
+	public Runnable prepareColors( ModelGraph graph, RefSet< Spot > trackletStarts, ToIntFunction< Spot > spotToColor )
+	{
+		int[] ids = new int[ trackletStarts.size() ];
+		int[] colors = new int[ trackletStarts.size() ];
+		int i = 0;
+		for ( Spot spot : trackletStarts )
+		{
+			ids[ i ] = trackletIds.getOrAssign( spot );
+			colors[ i ] = spotToColor.applyAsInt( spot );
+			i++;
+		}
+		return () -> sendColors( graph, ids, colors );
+	}
+
+	/**
+	 * Sends the colors of the tracklets with the given ids. Colors that
+	 * equal the last color sent for a tracklet are skipped.
+	 */
+	public void sendColors( ModelGraph graph, int[] ids, int[] colors )
+	{
+		synchronized ( sentColors )
+		{
+			int[] changed = sentColors.changed( ids, colors );
+			if ( changed.length == 0 )
+				return;
+			int[] changedIds = new int[ changed.length ];
+			int[] changedColors = new int[ changed.length ];
+			for ( int i = 0; i < changed.length; i++ )
+			{
+				changedIds[ i ] = ids[ changed[ i ] ];
+				changedColors[ i ] = colors[ changed[ i ] ];
+			}
+			sendAllColors( graph, changedIds, changedColors );
+			sentColors.update( changedIds, changedColors );
+			// a single color replaces the runs in Blender
+			sentColorRuns.forget( changedIds );
+		}
+	}
+
+	private void sendAllColors( ModelGraph graph, int[] ids, int[] colors )
+	{
+		// a few changed colors fit into a single message
+		if ( ids.length > MAX_COLORS_PER_MESSAGE && useSharedFile( graph ) && sendColorsViaSharedFile( ids, colors ) )
+			return;
+		List< SetSpotColorsRequest > requests = new ArrayList<>();
 		SetSpotColorsRequest.Builder request = SetSpotColorsRequest.newBuilder();
-		RefSet<Spot> trackletStarts = BranchGraphUtils.getAllBranchStarts( graph );
-		for ( Spot spot : trackletStarts ) {
-			request.addIds( spot.getInternalPoolIndex() );
-			request.addColors( spotToColor.applyAsInt( spot ) );
+		for ( int i = 0; i < ids.length; i++ ) {
+			request.addIds( ids[ i ] );
+			request.addColors( colors[ i ] );
+			if ( request.getIdsCount() == MAX_COLORS_PER_MESSAGE )
+			{
+				requests.add( request.build() );
+				request = SetSpotColorsRequest.newBuilder();
+			}
+		}
+		if ( request.getIdsCount() > 0 )
+			requests.add( request.build() );
+		if ( blockingMode )
+		{
+			for ( SetSpotColorsRequest r : requests )
+			{
+				acquireCredits( r.getIdsCount() );
+				bulkStub().setSpotColors( r );
+			}
+			return;
+		}
+		PipelinedSender sender = new PipelinedSender( maxRequestsInFlight );
+		for ( SetSpotColorsRequest r : requests )
+		{
+			acquireCredits( r.getIdsCount() );
+			sender.send( r, colorsRequest -> compressed( bulkFutureStub ).withDeadlineAfter( BULK_DEADLINE_SECONDS, TimeUnit.SECONDS ).setSpotColors( colorsRequest ) );
+		}
+		sender.flush();
+	}
+
+	/**
+	 * @return true if the addon can show colors that change along a
+	 * tracklet, see {@link #prepareColorRuns}.
+	 */
+	public boolean supportsColorRuns()
+	{
+		return capabilities.contains( Capability.COLOR_RUNS );
+	}
+
+	/**
+	 * Computes the colors of all spots of the given tracklets, run-length
+	 * encoded along each tracklet, see {@link ColorRunEncoder}. Must be
+	 * called under the read lock of the graph. The returned task sends
+	 * them, it can run after the lock is released.
+	 */
+	public Runnable prepareColorRuns( ModelGraph graph, RefSet< Spot > trackletStarts, ToIntFunction< Spot > spotToColor )
+	{
+		List< ColorRuns > tracklets = new ArrayList<>( trackletStarts.size() );
+		for ( Spot spot : trackletStarts )
+			tracklets.add( ColorRunEncoder.encode( graph, spot, trackletIds.getOrAssign( spot ), spotToColor, timeScalingFactor ) );
+		return () -> sendColorRuns( tracklets );
+	}
+
+	/**
+	 * Sends the given color runs. Tracklets whose runs equal the runs last
+	 * sent are skipped.
+	 */
+	private void sendColorRuns( List< ColorRuns > tracklets )
+	{
+		synchronized ( sentColors )
+		{
+			List< ColorRuns > changed = new ArrayList<>();
+			for ( ColorRuns tracklet : tracklets )
+				if ( sentColorRuns.changed( tracklet ) )
+					changed.add( tracklet );
+			if ( changed.isEmpty() )
+				return;
+			sendAllColorRuns( changed );
+			int[] ids = new int[ changed.size() ];
+			for ( int i = 0; i < ids.length; i++ )
+			{
+				ColorRuns tracklet = changed.get( i );
+				ids[ i ] = tracklet.getId();
+				sentColorRuns.update( tracklet );
+			}
+			// the runs replace the single colors of these tracklets
+			sentColors.forget( ids );
+		}
+	}
+
+	private void sendAllColorRuns( List< ColorRuns > tracklets )
+	{
+		List< SetColorRunsRequest > requests = new ArrayList<>();
+		SetColorRunsRequest.Builder request = SetColorRunsRequest.newBuilder();
+		int runs = 0;
+		for ( ColorRuns tracklet : tracklets )
+		{
+			request.addTracklets( tracklet );
+			runs += tracklet.getColorsCount();
+			if ( runs >= MAX_COLOR_RUNS_PER_MESSAGE )
+			{
+				requests.add( request.build() );
+				request = SetColorRunsRequest.newBuilder();
+				runs = 0;
+			}
+		}
+		if ( request.getTrackletsCount() > 0 )
+			requests.add( request.build() );
+		if ( blockingMode )
+		{
+			for ( SetColorRunsRequest r : requests )
+			{
+				acquireCredits( countRuns( r ) );
+				bulkStub().setColorRuns( r );
+			}
+			return;
+		}
+		PipelinedSender sender = new PipelinedSender( maxRequestsInFlight );
+		for ( SetColorRunsRequest r : requests )
+		{
+			acquireCredits( countRuns( r ) );
+			sender.send( r, runsRequest -> compressed( bulkFutureStub ).withDeadlineAfter( BULK_DEADLINE_SECONDS, TimeUnit.SECONDS ).setColorRuns( runsRequest ) );
+		}
+		sender.flush();
+	}
+
+	private static int countRuns( SetColorRunsRequest request )
+	{
+		int runs = 0;
+		for ( ColorRuns tracklet : request.getTrackletsList() )
+			runs += tracklet.getColorsCount();
+		return runs;
+	}
+
+	private boolean sendColorsViaSharedFile( int[] ids, int[] colors )
+	{
+		SharedFileRequest request;
+		try
+		{
+			request = SharedFile.writeColors( ids, colors );
+		}
+		catch ( IOException e )
+		{
+			e.printStackTrace();
+			return false;
+		}
+		try
+		{
+			bulkBlockingStub.withDeadlineAfter( BULK_DEADLINE_SECONDS, TimeUnit.SECONDS ).setSpotColorsFromFile( request );
+		}
+		finally
+		{
+			SharedFile.delete( request );
+		}
+		return true;
+	}
+
+	private AddMovingSpotRequest createTrackletRequest( ModelGraph graph, int branchStart, int[] colors, int i, AffineTransform3D transform )
+	{
+		Spot start = graph.vertexRef();
+		try
+		{
+			AddMovingSpotRequest request = createTrackletRequest( graph, graph.vertices().getRefPool().getObject( branchStart, start ), transform );
+			return colors == null ? request : request.toBuilder().setColor( colors[ i ] ).build();
+		}
+		finally
+		{
+			graph.releaseRef( start );
 		}
-		blockingStub.setSpotColors( request.build() );
 	}
 
-	private void transferTracklet( ModelGraph graph, Spot start, AffineTransform3D transform )
+	private AddMovingSpotRequest createTrackletRequest( ModelGraph graph, Spot start, AffineTransform3D transform )
 	{
 		Spot spot = graph.vertexRef();
 		try
 		{
-			AddMovingSpotRequest.Builder request = AddMovingSpotRequest.newBuilder();
-			request.setId( start.getInternalPoolIndex() );
-			request.setLabel( start.getLabel() );
-			addIncomingSpotPositionToRequest( request, start, transform, spot ); // for better visualization of cell divisions in Blender
-			addEachSpotsCoordinatesToRequest( start, transform, spot, request );
-			blockingStub.addMovingSpot( request.build() );
+			int size = countTrackletSpots( start, spot );
+			ByteBuffer coordinates = ByteBuffer.allocate( 3 * Float.BYTES * size ).order( ByteOrder.LITTLE_ENDIAN );
+			ByteBuffer timepoints = ByteBuffer.allocate( Integer.BYTES * size ).order( ByteOrder.LITTLE_ENDIAN );
+			addIncomingSpotPosition( coordinates, timepoints, start, transform, spot ); // for better visualization of cell divisions in Blender
+			addEachSpotsCoordinates( coordinates, timepoints, start, transform, spot );
+			return AddMovingSpotRequest.newBuilder()
+					.setId( trackletIds.getOrAssign( start ) )
+					.setLabel( start.getLabel() )
+					.setFormat( ArrayFormat.PACKED_LITTLE_ENDIAN )
+					.setPackedCoordinates( UnsafeByteOperations.unsafeWrap( coordinates.array() ) )
+					.setPackedTimepoints( UnsafeByteOperations.unsafeWrap( timepoints.array() ) )
+					.build();
 		}
 		finally
 		{
@@ -219,44 +1285,113 @@ public class ViewServiceClient
 		}
 	}
 
-	private void addIncomingSpotPositionToRequest( AddMovingSpotRequest.Builder request, Spot branchStart, AffineTransform3D transform, Spot ref )
+	/**
+	 * Splits the given packed request into multiple requests with at most
+	 * {@link #MAX_SPOTS_PER_MESSAGE} spots each. All but the last chunk
+	 * are marked with {@code has_more}. Blender concatenates the chunks.
+	 */
+	static List< AddMovingSpotRequest > splitIntoChunks( AddMovingSpotRequest request )
+	{
+		int n = request.getPackedTimepoints().size() / Integer.BYTES;
+		if ( n <= MAX_SPOTS_PER_MESSAGE )
+			return Collections.singletonList( request );
+		List< AddMovingSpotRequest > chunks = new ArrayList<>();
+		for ( int from = 0; from < n; from += MAX_SPOTS_PER_MESSAGE )
+		{
+			int to = Math.min( n, from + MAX_SPOTS_PER_MESSAGE );
+			AddMovingSpotRequest.Builder chunk = AddMovingSpotRequest.newBuilder();
+			chunk.setId( request.getId() );
+			if ( from == 0 )
+			{
+				chunk.setLabel( request.getLabel() );
+				if ( request.hasColor() )
+					chunk.setColor( request.getColor() );
+			}
+			chunk.setFormat( request.getFormat() );
+			chunk.setPackedCoordinates( request.getPackedCoordinates().substring( 3 * Float.BYTES * from, 3 * Float.BYTES * to ) );
+			chunk.setPackedTimepoints( request.getPackedTimepoints().substring( Integer.BYTES * from, Integer.BYTES * to ) );
+			chunk.setHasMore( to < n );
+			chunks.add( chunk.build() );
+		}
+		return chunks;
+	}
+
+	/**
+	 * Converts a packed request into the format with repeated fields, which
+	 * is understood by addons without the {@link Capability#PACKED_ARRAYS}
+	 * capability.
+	 */
+	static AddMovingSpotRequest toRepeatedArrays( AddMovingSpotRequest packed )
+	{
+		FloatBuffer coordinates = packed.getPackedCoordinates().asReadOnlyByteBuffer().order( ByteOrder.LITTLE_ENDIAN ).asFloatBuffer();
+		IntBuffer timepoints = packed.getPackedTimepoints().asReadOnlyByteBuffer().order( ByteOrder.LITTLE_ENDIAN ).asIntBuffer();
+		AddMovingSpotRequest.Builder request = AddMovingSpotRequest.newBuilder()
+				.setId( packed.getId() )
+				.setLabel( packed.getLabel() );
+		while ( coordinates.hasRemaining() )
+			request.addCoordinates( coordinates.get() );
+		while ( timepoints.hasRemaining() )
+			request.addTimepoints( timepoints.get() );
+		return request.build();
+	}
+
+	private static int countTrackletSpots( Spot branchStart, Spot ref )
+	{
+		int count = branchStart.incomingEdges().size() == 1 ? 2 : 1;
+		Spot spot = ref.refTo( branchStart );
+		while ( spot.outgoingEdges().size() == 1 )
+		{
+			spot = spot.outgoingEdges().iterator().next().getTarget( ref );
+			if ( spot.incomingEdges().size() != 1 )
+				break;
+			count++;
+		}
+		return count;
+	}
+
+	private void addIncomingSpotPosition( ByteBuffer coordinates, ByteBuffer timepoints, Spot branchStart, AffineTransform3D transform, Spot ref )
 	{
 		if ( branchStart.incomingEdges().size() == 1 )
 		{
 			branchStart.incomingEdges().iterator().next().getSource( ref );
-			coordinates( request, ref, transform );
+			coordinates( coordinates, timepoints, ref, transform );
 		}
 	}
 
-	private void addEachSpotsCoordinatesToRequest( Spot start, AffineTransform3D transform, Spot ref, AddMovingSpotRequest.Builder request )
+	private void addEachSpotsCoordinates( ByteBuffer coordinates, ByteBuffer timepoints, Spot start, AffineTransform3D transform, Spot ref )
 	{
 		Spot spot = ref.refTo( start );
-		coordinates( request, spot, transform );
+		coordinates( coordinates, timepoints, spot, transform );
 		while ( spot.outgoingEdges().size() == 1 )
 		{
 			spot = spot.outgoingEdges().iterator().next().getTarget( ref );
 			if ( spot.incomingEdges().size() != 1 )
 				break;
-			coordinates( request, spot, transform );
+			coordinates( coordinates, timepoints, spot, transform );
 		}
 	}
 
-	private void coordinates( AddMovingSpotRequest.Builder request, Spot spot, AffineTransform3D transform )
+	private void coordinates( ByteBuffer coordinates, ByteBuffer timepoints, Spot spot, AffineTransform3D transform )
 	{
-		RealPoint point = new RealPoint( 3 );
-		transform.apply( spot, point );
-		request.addCoordinates( point.getFloatPosition( 0 ) );
-		request.addCoordinates( point.getFloatPosition( 1 ) );
-		request.addCoordinates( point.getFloatPosition( 2 ) );
-		request.addTimepoints( spot.getTimepoint() * timeScalingFactor );
+		double[] position = this.position.get();
+		spot.localize( position );
+		transform.apply( position, position );
+		coordinates.putFloat( ( float ) position[ 0 ] );
+		coordinates.putFloat( ( float ) position[ 1 ] );
+		coordinates.putFloat( ( float ) position[ 2 ] );
+		timepoints.putInt( spot.getTimepoint() * timeScalingFactor );
 	}
 
 	// callback
 
 	public void subscribeToChangeEvents()
 	{
-
-		nonBlockingStub.subscribeToChange( Empty.newBuilder().build(), new StreamObserver<ChangeMessage>()
+		if ( session != null )
+		{
+			session.send( ClientMessage.newBuilder().setSubscribeToChange( Empty.newBuilder().build() ) );
+			return;
+		}
+		nonBlockingStub.subscribeToChange( Empty.newBuilder().build(), new StreamObserver< ChangeMessage >()
 		{
 			@Override
 			public void onNext( ChangeMessage changeMessage )
@@ -267,46 +1402,66 @@ public class ViewServiceClient
 			@Override
 			public void onError( Throwable throwable )
 			{
-				if( isUnavailableException( throwable ) )
-				{
-					System.out.println( "Connection to Blender is lost." );
-					listener.onConnectionLost();
-				}
-				else
-					throwable.printStackTrace();
-			}
-
-			private boolean isUnavailableException( Throwable throwable )
-			{
-				return throwable instanceof StatusRuntimeException
-						&& Status.Code.UNAVAILABLE == ( ( StatusRuntimeException ) throwable ).getStatus().getCode();
+				onConnectionError( throwable );
 			}
 
 			@Override
 			public void onCompleted()
 			{
-
+				// nothing to do
 			}
 		} );
 	}
 
+	/**
+	 * Called if a stream or a call to Blender fails. Closing the client
+	 * shuts down the channel, which fails the open streams too. That is no
+	 * lost connection, and is ignored.
+	 */
+	private void onConnectionError( Throwable throwable )
+	{
+		if ( closed.get() )
+			return;
+		if( isUnavailableException( throwable ) )
+		{
+			System.out.println( "Connection to Blender is lost." );
+			if ( creditGate != null )
+				creditGate.close();
+			listener.onConnectionLost();
+		}
+		else
+			throwable.printStackTrace();
+	}
+
+	private static boolean isUnavailableException( Throwable throwable )
+	{
+		return throwable instanceof StatusRuntimeException
+				&& Status.Code.UNAVAILABLE == ( ( StatusRuntimeException ) throwable ).getStatus().getCode();
+	}
+
+	/**
+	 * Passes the state carried by the change message to the listener.
+	 * Older versions of the Blender addon send change messages without
+	 * payload, in this case the state is requested with an extra call.
+	 */
 	private void processChangeMessage( ChangeMessage changeMessage )
 	{
+		boolean hasPayload = changeMessage.getPayloadCase() != ChangeMessage.PayloadCase.PAYLOAD_NOT_SET;
 		switch ( changeMessage.getId() ) {
 		case TIME_POINT:
-			listener.onTimepointChanged();
+			listener.onTimepointChanged( hasPayload ? toMastodonTimepoint( changeMessage.getTimepoint() ) : receiveTimepoint() );
 			break;
 		case ACTIVE_SPOT:
-			listener.onActiveSpotChanged();
+			listener.onActiveSpotChanged( hasPayload ? changeMessage.getSpotId() : receiveActiveSpotId() );
 			break;
 		case UPDATE_COLORS_REQUEST:
 			listener.onUpdateColorsRequest();
 			break;
 		case SELECTED_TAG_SET:
-			listener.onSelectedTagSetChanged();
+			listener.onSelectedTagSetChanged( hasPayload ? changeMessage.getTagSetIndex() : receiveTagSetIndex() );
 			break;
 		case SYNC_GROUP:
-			listener.onSyncGroupChanged();
+			listener.onSyncGroupChanged( hasPayload ? changeMessage.getSyncGroupIndex() : receiveSyncGroupIndex() );
 			break;
 		default:
 			System.err.println("Unexpected event received from blender mastodon plugin.");
@@ -315,15 +1470,18 @@ public class ViewServiceClient
 
 	public interface Listener {
 
-		void onSyncGroupChanged();
+		void onSyncGroupChanged( int syncGroupIndex );
 
-		void onTimepointChanged();
+		void onTimepointChanged( int timepoint );
 
-		void onActiveSpotChanged();
+		/**
+		 * @param spotId id of the tracklet that is active in Blender, negative if none.
+		 */
+		void onActiveSpotChanged( int spotId );
 
 		void onUpdateColorsRequest();
 
-		void onSelectedTagSetChanged();
+		void onSelectedTagSetChanged( int tagSetIndex );
 
 		void onConnectionLost();
 	}
@@ -0,0 +1,221 @@
+/*-
+ * #%L
+ * A Mastodon plugin data allows to show the embryo in Blender.
+ * %%
+ * Copyright (C) 2022 - 2025 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.blender;
+
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import org.mastodon.ChangeMessage;
+import org.mastodon.ClientMessage;
+import org.mastodon.ServerMessage;
+import org.mastodon.ViewServiceGrpc;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/**
+ * Wraps the bidirectional "session" stream of the view service.
+ * <p>
+ * All messages are sent on one stream and are therefore processed by
+ * Blender in the order they were sent. {@link #call} waits for the
+ * response that carries the same request id. Change messages sent by
+ * Blender are passed to the change listener.
+ * <p>
+ * The change listener and the credit listener are called in their own
+ * threads, not in the gRPC callback thread. A change listener may send a
+ * bulk upload that waits for credits or calls Blender, the credits and
+ * responses arrive in the callback thread meanwhile.
+ */
+class ViewServiceSession implements StreamObserver< ServerMessage >
+{
+	private final StreamObserver< ClientMessage > requests;
+
+	private final Consumer< ChangeMessage > changeListener;
+
+	private final Consumer< Throwable > errorListener;
+
+	private final AtomicInteger nextRequestId = new AtomicInteger( 1 );
+
+	private final Map< Integer, CompletableFuture< ServerMessage > > pendingCalls = new ConcurrentHashMap<>();
+
+	private volatile Throwable error;
+
+	private volatile LongConsumer creditListener = items -> {};
+
+	private final ExecutorService changeExecutor = newDaemonExecutor( "blender-change-events" );
+
+	private final ExecutorService creditExecutor = newDaemonExecutor( "blender-credits" );
+
+	ViewServiceSession( ViewServiceGrpc.ViewServiceStub stub, Consumer< ChangeMessage > changeListener, Consumer< Throwable > errorListener )
+	{
+		this.changeListener = changeListener;
+		this.errorListener = errorListener;
+		this.requests = stub.session( this );
+	}
+
+	private static ExecutorService newDaemonExecutor( String threadName )
+	{
+		return Executors.newSingleThreadExecutor( runnable -> {
+			Thread thread = new Thread( runnable, threadName );
+			thread.setDaemon( true );
+			return thread;
+		} );
+	}
+
+	/**
+	 * Sets the listener for the credit grants that Blender sends after
+	 * flow control was enabled.
+	 */
+	public void setCreditListener( LongConsumer creditListener )
+	{
+		this.creditListener = creditListener;
+	}
+
+	/**
+	 * Sends the message without waiting for Blender to process it.
+	 */
+	public void send( ClientMessage.Builder message )
+	{
+		throwIfFailed();
+		synchronized ( requests )
+		{
+			requests.onNext( message.build() );
+		}
+	}
+
+	/**
+	 * Sends the message and waits for the response. Throws a
+	 * {@code DEADLINE_EXCEEDED} status exception if there is no response
+	 * within the given time.
+	 */
+	public ServerMessage call( ClientMessage.Builder message, long timeout, TimeUnit unit )
+	{
+		int requestId = nextRequestId.getAndIncrement();
+		CompletableFuture< ServerMessage > response = new CompletableFuture<>();
+		pendingCalls.put( requestId, response );
+		try
+		{
+			send( message.setRequestId( requestId ) );
+			return response.get( timeout, unit );
+		}
+		catch ( TimeoutException e )
+		{
+			throw Status.DEADLINE_EXCEEDED.withDescription( "Blender did not respond in time." ).asRuntimeException();
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( e );
+		}
+		catch ( ExecutionException e )
+		{
+			throw Status.fromThrowable( e.getCause() ).asRuntimeException();
+		}
+		finally
+		{
+			pendingCalls.remove( requestId );
+		}
+	}
+
+	public void close()
+	{
+		changeExecutor.shutdown();
+		creditExecutor.shutdown();
+		if ( error != null )
+			return;
+		synchronized ( requests )
+		{
+			requests.onCompleted();
+		}
+	}
+
+	private void throwIfFailed()
+	{
+		if ( error != null )
+			throw Status.fromThrowable( error ).asRuntimeException();
+	}
+
+	@Override
+	public void onNext( ServerMessage message )
+	{
+		if ( message.hasChange() )
+		{
+			ChangeMessage change = message.getChange();
+			execute( changeExecutor, () -> changeListener.accept( change ) );
+			return;
+		}
+		if ( message.hasCredit() )
+		{
+			long items = message.getCredit().getItems();
+			execute( creditExecutor, () -> creditListener.accept( items ) );
+			return;
+		}
+		CompletableFuture< ServerMessage > response = pendingCalls.get( message.getRequestId() );
+		if ( response != null )
+			response.complete( message );
+	}
+
+	private static void execute( ExecutorService executor, Runnable task )
+	{
+		try
+		{
+			executor.execute( task );
+		}
+		catch ( RejectedExecutionException e )
+		{
+			// closed, the message is not needed anymore
+		}
+	}
+
+	@Override
+	public void onError( Throwable throwable )
+	{
+		error = throwable;
+		for ( CompletableFuture< ServerMessage > response : pendingCalls.values() )
+			response.completeExceptionally( throwable );
+		changeExecutor.shutdown();
+		creditExecutor.shutdown();
+		errorListener.accept( throwable );
+	}
+
+	@Override
+	public void onCompleted()
+	{
+		onError( Status.UNAVAILABLE.withDescription( "Blender closed the session." ).asRuntimeException() );
+	}
+}
@@ -86,6 +86,36 @@ public class BlenderSettingsCommand implements Command, Initializable, Cancelabl
 	@Parameter( label = "Save Default Template As...", callback = "saveDefaultCsvTemplate" )
 	private Button saveDefaultCsvTemplate;
 
+	@Parameter( visibility = ItemVisibility.MESSAGE ) // Text that is displayed in the dialog and never changes.
+	private String compressionDescription = "Compression of the data sent to the \"" + Blender3dViewPlugin.LINKED_TO_MASTODON + "\" Blender view:";
+
+	@Parameter( label = "Compression", choices = { "none", "gzip", "deflate" }, persist = false )
+	private String compression = "none";
+
+	@Parameter( label = "Restart Blender after a crash", persist = false )
+	private boolean autoResume = true;
+
+	@Parameter( label = "Load tracklets on demand (for huge datasets)", persist = false )
+	private boolean loadOnDemand = false;
+
+	@Parameter( label = "Color each spot, not only the first spot of a tracklet", persist = false )
+	private boolean perSpotColors = false;
+
+	@Parameter( visibility = ItemVisibility.MESSAGE ) // Text that is displayed in the dialog and never changes.
+	private String remoteDescription = "Connect to a Blender that already runs on another computer (leave the host empty to start Blender locally):";
+
+	@Parameter( label = "Host", required = false, persist = false )
+	private String remoteHost = "";
+
+	@Parameter( label = "Port", min = "1", max = "65535", persist = false )
+	private int remotePort = BlenderSettingsService.DEFAULT_REMOTE_PORT;
+
+	@Parameter( label = "Use TLS", persist = false )
+	private boolean remoteTls = false;
+
+	@Parameter( label = "Trusted Certificate", style = "open, extensions:pem/crt", required = false, persist = false )
+	private File remoteCertificate = null;
+
 	@Override
 	public void initialize()
 	{
@@ -93,6 +123,15 @@ public class BlenderSettingsCommand implements Command, Initializable, Cancelabl
 		String csvTemplateString = blenderSettingsService.getCsvBlenderTemplate();
 		this.interactiveTemplate = interactiveTemplateString.isEmpty() ? DEFAULT_FILE : new File( interactiveTemplateString );
 		this.csvTemplate = csvTemplateString.isEmpty() ? DEFAULT_FILE : new File( csvTemplateString );
+		this.compression = blenderSettingsService.getCompression();
+		this.autoResume = blenderSettingsService.isAutoResume();
+		this.loadOnDemand = blenderSettingsService.isLoadOnDemand();
+		this.perSpotColors = blenderSettingsService.isPerSpotColors();
+		this.remoteHost = blenderSettingsService.getRemoteHost();
+		this.remotePort = blenderSettingsService.getRemotePort();
+		this.remoteTls = blenderSettingsService.isRemoteTls();
+		String certificate = blenderSettingsService.getRemoteCertificate();
+		this.remoteCertificate = certificate.isEmpty() ? null : new File( certificate );
 	}
 
 	@Override
@@ -100,6 +139,14 @@ public class BlenderSettingsCommand implements Command, Initializable, Cancelabl
 	{
 		blenderSettingsService.setInteractiveBlenderTemplate( extracted( interactiveTemplate ) );
 		blenderSettingsService.setCsvBlenderTemplate( extracted( csvTemplate ) );
+		blenderSettingsService.setCompression( compression );
+		blenderSettingsService.setAutoResume( autoResume );
+		blenderSettingsService.setLoadOnDemand( loadOnDemand );
+		blenderSettingsService.setPerSpotColors( perSpotColors );
+		blenderSettingsService.setRemoteHost( remoteHost == null ? "" : remoteHost.trim() );
+		blenderSettingsService.setRemotePort( remotePort );
+		blenderSettingsService.setRemoteTls( remoteTls );
+		blenderSettingsService.setRemoteCertificate( remoteCertificate == null ? "" : remoteCertificate.getAbsolutePath() );
 	}
 
 	private String extracted( File template )
@@ -32,8 +32,11 @@ import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
 import org.apache.commons.io.FileUtils;
+import org.mastodon.blender.BlenderAddress;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 import org.scijava.prefs.PrefService;
@@ -41,7 +44,8 @@ import org.scijava.service.AbstractService;
 import org.scijava.service.SciJavaService;
 
 /**
- * A SciJava service that stores the paths to the Blender templates used by Mastodon.
+ * A SciJava service that stores the paths to the Blender templates used by Mastodon,
+ * and the settings for the connection to Blender.
  */
 @Plugin( type = SciJavaService.class )
 public class BlenderSettingsService extends AbstractService implements SciJavaService
@@ -49,6 +53,8 @@ public class BlenderSettingsService extends AbstractService implements SciJavaSe
 
 	public static final URL DEFAULT_INTERACTIVE_TEMPLATE = BlenderSettingsService.class.getResource( "/blender-scripts/empty.blend" );
 
+	public static final int DEFAULT_REMOTE_PORT = 50051;
+
 	public static final URL DEFAULT_CSV_TEMPLATE = BlenderSettingsService.class.getResource( "/csv/empty_with_geometry_nodes.blend" );
 
 	@Parameter
@@ -70,6 +76,108 @@ public class BlenderSettingsService extends AbstractService implements SciJavaSe
 		return prefService.get(BlenderSettingsService.class, "csvBlenderTemplate", "");
 	}
 
+	/**
+	 * Sets the gRPC message compression used when uploading the graph to
+	 * Blender: "none", "gzip" or "deflate".
+	 */
+	public void setCompression(String compression) {
+		prefService.put(BlenderSettingsService.class, "compression", compression);
+	}
+
+	public String getCompression() {
+		return prefService.get(BlenderSettingsService.class, "compression", "none");
+	}
+
+	/**
+	 * If true, Blender is restarted and the view is restored automatically,
+	 * when Blender crashes or stops responding.
+	 */
+	public void setAutoResume(boolean autoResume) {
+		prefService.put(BlenderSettingsService.class, "autoResume", autoResume);
+	}
+
+	public boolean isAutoResume() {
+		return prefService.getBoolean(BlenderSettingsService.class, "autoResume", true);
+	}
+
+	/**
+	 * If true, Blender fetches the tracklets from Mastodon when needed,
+	 * instead of getting the whole graph when the view is opened.
+	 */
+	public void setLoadOnDemand(boolean loadOnDemand) {
+		prefService.put(BlenderSettingsService.class, "loadOnDemand", loadOnDemand);
+	}
+
+	public boolean isLoadOnDemand() {
+		return prefService.getBoolean(BlenderSettingsService.class, "loadOnDemand", false);
+	}
+
+	/**
+	 * If true, each spot is shown in the color of its tags, the color of a
+	 * sphere changes along the tracklet. Otherwise, the first spot of a
+	 * tracklet determines the color of the whole tracklet.
+	 */
+	public void setPerSpotColors(boolean perSpotColors) {
+		prefService.put(BlenderSettingsService.class, "perSpotColors", perSpotColors);
+	}
+
+	public boolean isPerSpotColors() {
+		return prefService.getBoolean(BlenderSettingsService.class, "perSpotColors", false);
+	}
+
+	/**
+	 * Sets the host of a Blender that already runs, e.g. on a render
+	 * server. Empty if Mastodon starts Blender on this computer.
+	 */
+	public void setRemoteHost(String host) {
+		prefService.put(BlenderSettingsService.class, "remoteHost", host);
+	}
+
+	public String getRemoteHost() {
+		return prefService.get(BlenderSettingsService.class, "remoteHost", "");
+	}
+
+	public void setRemotePort(int port) {
+		prefService.put(BlenderSettingsService.class, "remotePort", port);
+	}
+
+	public int getRemotePort() {
+		return prefService.getInt(BlenderSettingsService.class, "remotePort", DEFAULT_REMOTE_PORT);
+	}
+
+	public void setRemoteTls(boolean tls) {
+		prefService.put(BlenderSettingsService.class, "remoteTls", tls);
+	}
+
+	public boolean isRemoteTls() {
+		return prefService.getBoolean(BlenderSettingsService.class, "remoteTls", false);
+	}
+
+	/**
+	 * Sets the certificate file (PEM) that the remote Blender's certificate
+	 * is checked against. Empty to use the system's trusted certificates.
+	 */
+	public void setRemoteCertificate(String certificate) {
+		prefService.put(BlenderSettingsService.class, "remoteCertificate", certificate);
+	}
+
+	public String getRemoteCertificate() {
+		return prefService.get(BlenderSettingsService.class, "remoteCertificate", "");
+	}
+
+	/**
+	 * Returns the address of the remote Blender, or null if Mastodon
+	 * starts Blender on this computer.
+	 */
+	public BlenderAddress getRemoteAddress() {
+		String host = getRemoteHost().trim();
+		if (host.isEmpty())
+			return null;
+		String certificate = getRemoteCertificate();
+		Path trustedCertificate = certificate.isEmpty() ? null : Paths.get(certificate);
+		return BlenderAddress.remote(host, getRemotePort(), isRemoteTls(), trustedCertificate);
+	}
+
 	public File getCopyOfInteractiveBlenderTemplate() throws IOException
 	{
 		return getTemplateCopy( DEFAULT_INTERACTIVE_TEMPLATE, getInteractiveBlenderTemplate() );
@@ -28,10 +28,12 @@
  */
 package org.mastodon.blender.setup;
 
+import io.grpc.ManagedChannel;
 import org.apache.commons.io.Charsets;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.ArrayUtils;
+import org.mastodon.blender.BlenderAddress;
 import org.mastodon.blender.ViewServiceClient;
 import org.scijava.Context;
 import org.scijava.prefs.PrefService;
@@ -50,6 +52,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.StringJoiner;
@@ -62,12 +65,20 @@ public class StartBlender
 
 	private static String emptyBlenderProject = "";
 
-	public static void startBlender( Context context, int port ) throws IOException
+	/**
+	 * Starts Blender with the settings of the {@link BlenderSettingsService},
+	 * and waits until the addon responds on the given channel.
+	 *
+	 * @param addonArguments additional command line arguments for the
+	 *                       Mastodon addon, e.g. "--mastodon-data".
+	 */
+	public static Process startBlender( Context context, BlenderAddress address, ManagedChannel channel, List< String > addonArguments )
+			throws IOException
 	{
 		BlenderSettingsService settingsService = context.service( BlenderSettingsService.class );
 		Path blenderPath = getBlenderPath( context );
 		String blenderTemplate = tryGetTemplate( settingsService );
-		startBlender( blenderPath, blenderTemplate, port );
+		return startBlender( blenderPath, blenderTemplate, address, channel, addonArguments );
 	}
 
 	private static String tryGetTemplate( BlenderSettingsService settingsService )
@@ -83,8 +94,28 @@ public class StartBlender
 		}
 	}
 
-	public static Process startBlender( Path blenderPath, String blenderTemplate, int port, String... args )
+	public static Process startBlender( Path blenderPath, String blenderTemplate, BlenderAddress address, String... args )
 			throws IOException
+	{
+		ManagedChannel channel = address.channelBuilder().build();
+		try
+		{
+			return startBlender( blenderPath, blenderTemplate, address, channel, args );
+		}
+		finally
+		{
+			ViewServiceClient.shutdown( channel );
+		}
+	}
+
+	public static Process startBlender( Path blenderPath, String blenderTemplate, BlenderAddress address, ManagedChannel channel,
+			String... args ) throws IOException
+	{
+		return startBlender( blenderPath, blenderTemplate, address, channel, Collections.emptyList(), args );
+	}
+
+	private static Process startBlender( Path blenderPath, String blenderTemplate, BlenderAddress address, ManagedChannel channel,
+			List< String > addonArguments, String... args ) throws IOException
 	{
 		List<String> command = new ArrayList<>();
 		command.add( blenderPath.toString() );
@@ -98,12 +129,12 @@ public class StartBlender
 			command.addAll( screenSize() );
 		command.addAll( Arrays.asList(args) );
 		command.add("--");
-		command.add("--mastodon-port");
-		command.add(Integer.toString( port ));
+		command.addAll( address.commandLineArguments() );
+		command.addAll( addonArguments );
 		ProcessBuilder builder = new ProcessBuilder( command.toArray( new String[ 0 ] ) );
 		Process process = builder.start();
 		try {
-			ViewServiceClient.waitForConnection( port );
+			ViewServiceClient.waitForConnection( channel );
 		}
 		catch (Throwable error )	{
 			throwException( command, process, error );
@@ -57,6 +57,17 @@ public class BranchGraphUtils
 		return s;
 	}
 
+	/**
+	 * Returns true if the spot is the first spot of a branch, i.e. it
+	 * doesn't have exactly one parent, or its parent divides.
+	 */
+	public static boolean isBranchStart( Spot spot, Spot ref )
+	{
+		if ( spot.incomingEdges().size() != 1 )
+			return true;
+		return spot.incomingEdges().iterator().next().getSource( ref ).outgoingEdges().size() != 1;
+	}
+
 	private static Spot getBranchEnd( Spot spot, Spot ref )
 	{
 		Spot s = spot;
@@ -52,13 +52,12 @@ os.environ.pop("PIP_REQ_TRACKER", None)
 # install dependencies
 
 python_path = get_python_path()
-packages = {'grpcio', 'bidict', 'grpcio-tools', 'pandas'}
+packages = {'grpcio', 'grpcio-tools', 'pandas'}
 subprocess.run([python_path, '-m', 'pip', 'install', *packages], check=True)
 
 # test if dependencies are installed
 
 try:
-    import bidict
     import grpc
     import google.protobuf
     import pandas
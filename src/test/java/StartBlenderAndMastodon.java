@@ -50,7 +50,7 @@ public class StartBlenderAndMastodon
 
 	private static void copyAddonFromRepoToBlender() throws IOException
 	{
-		List<String> files = Arrays.asList("__init__.py", "mb_scene.py", "mb_panel.py", "mb_server.py", "mb_utils.py");
+		List<String> files = Arrays.asList("__init__.py", "mb_scene.py", "mb_panel.py", "mb_server.py", "mb_data_client.py", "mb_shared_file.py", "mb_utils.py");
 		for ( String filename : files )
 			copyFromIdeToBlender( filename );
 	}
@@ -0,0 +1,84 @@
+/*-
+ * #%L
+ * A Mastodon plugin data allows to show the embryo in Blender.
+ * %%
+ * Copyright (C) 2022 - 2025 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.blender;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.mastodon.ColorRuns;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+
+public class ColorRunEncoderTest
+{
+	@Test
+	public void testConstantColorIsOneRun()
+	{
+		ModelGraph graph = createBranch( 5 );
+		ColorRuns runs = ColorRunEncoder.encode( graph, graph.vertices().iterator().next(), 3, spot -> 0x00ff00, 10 );
+		assertEquals( 3, runs.getId() );
+		assertEquals( Arrays.asList( 0 ), runs.getFramesList() );
+		assertEquals( Arrays.asList( 0x00ff00 ), runs.getColorsList() );
+	}
+
+	@Test
+	public void testColorChanges()
+	{
+		ModelGraph graph = createBranch( 6 );
+		// red for timepoints 0 and 1, green for 2 to 4, red again for 5
+		ColorRuns runs = ColorRunEncoder.encode( graph, graph.vertices().iterator().next(), 0,
+				spot -> spot.getTimepoint() >= 2 && spot.getTimepoint() <= 4 ? 0x00ff00 : 0xff0000, 10 );
+		assertEquals( Arrays.asList( 0, 20, 50 ), runs.getFramesList() );
+		assertEquals( Arrays.asList( 0xff0000, 0x00ff00, 0xff0000 ), runs.getColorsList() );
+	}
+
+	/**
+	 * Returns a graph with a single branch of the given length. Spot i has
+	 * timepoint i.
+	 */
+	private static ModelGraph createBranch( int length )
+	{
+		ModelGraph graph = new Model().getGraph();
+		Spot previous = graph.vertexRef();
+		Spot spot = graph.vertexRef();
+		for ( int i = 0; i < length; i++ )
+		{
+			graph.addVertex( spot ).init( i, new double[] { i, i, i }, 1 );
+			if ( i > 0 )
+				graph.addEdge( previous, spot ).init();
+			previous.refTo( spot );
+		}
+		graph.releaseRef( previous );
+		graph.releaseRef( spot );
+		return graph;
+	}
+}
@@ -0,0 +1,186 @@
+/*-
+ * #%L
+ * A Mastodon plugin data allows to show the embryo in Blender.
+ * %%
+ * Copyright (C) 2022 - 2025 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.blender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import io.grpc.CallOptions;
+import io.grpc.Codec;
+import io.grpc.ManagedChannel;
+import io.grpc.MethodDescriptor;
+import io.grpc.protobuf.ProtoUtils;
+import io.grpc.stub.ClientCalls;
+import net.imglib2.realtransform.AffineTransform3D;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.mastodon.Empty;
+import org.mastodon.SetSpotColorsRequest;
+import org.mastodon.ViewServiceGrpc;
+import org.mastodon.blender.setup.StartBlender;
+import org.mastodon.blender.utils.BranchGraphUtils;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+
+/**
+ * Compares the upload time and size of the coordinates and colors of a
+ * synthetic lineage, with and without message compression. The upload goes
+ * to a fake view service over TCP on localhost, such that the numbers show
+ * the CPU cost of the compression. On a slow link the size matters more.
+ */
+public class CompressionBenchmarkTest
+{
+	private static final int[] PALETTE = { 0xff0000, 0x00ff00, 0x0000ff, 0x444444 };
+
+	@Ignore( "Benchmark, takes long. Run it manually." )
+	@Test
+	public void testCompareCompressions() throws Exception
+	{
+		ModelGraph graph = SyntheticLineage.create( 11, 100 ).getGraph();
+		int[] branchStarts = BranchGraphUtils.getAllBranchStarts( graph ).stream()
+				.mapToInt( Spot::getInternalPoolIndex )
+				.sorted()
+				.toArray();
+		BlenderAddress address = BlenderAddress.tcp( StartBlender.getFreePort() );
+		FakeViewService service = new FakeViewService();
+		service.start( address );
+		ManagedChannel channel = address.channelBuilder()
+				.compressorRegistry( MessageCompression.compressorRegistry() )
+				.build();
+		try
+		{
+			MethodDescriptor< ByteBuffer, Empty > method = ViewServiceGrpc.getAddMovingSpotsMethod()
+					.toBuilder( new ByteBufferMarshaller(), ProtoUtils.marshaller( Empty.getDefaultInstance() ) )
+					.build();
+			SetSpotColorsRequest colors = createColorsRequest( branchStarts );
+			long uncompressed = compressedSize( graph, branchStarts, colors, MessageCompression.NONE );
+			for ( String compression : MessageCompression.ALL )
+			{
+				upload( channel, method, graph, branchStarts, colors, compression ); // warm up
+				long start = System.nanoTime();
+				upload( channel, method, graph, branchStarts, colors, compression );
+				long time = System.nanoTime() - start;
+				long size = compressedSize( graph, branchStarts, colors, compression );
+				System.out.printf( "%-8s %8.1f ms %8.2f MB%n", compression, time / 1e6, size / 1e6 );
+				assertTrue( compression + " makes the upload larger.", size <= uncompressed + uncompressed / 100 );
+			}
+			assertEquals( 2L * MessageCompression.ALL.size() * graph.vertices().size() + 2L * MessageCompression.ALL.size() * ( branchStarts.length - 1 ),
+					service.receivedSpots.get() );
+			assertEquals( 2L * MessageCompression.ALL.size() * branchStarts.length, service.receivedColors.get() );
+		}
+		finally
+		{
+			channel.shutdown().awaitTermination( 5, TimeUnit.SECONDS );
+			service.shutdown();
+		}
+	}
+
+	private static void upload( ManagedChannel channel, MethodDescriptor< ByteBuffer, Empty > method,
+			ModelGraph graph, int[] branchStarts, SetSpotColorsRequest colors, String compression )
+	{
+		CallOptions options = compression.equals( MessageCompression.NONE ) ? CallOptions.DEFAULT : CallOptions.DEFAULT.withCompression( compression );
+		StreamingUpload< ByteBuffer > upload = new StreamingUpload<>();
+		ClientCalls.asyncClientStreamingCall( channel.newCall( method, options ), upload );
+		newEncoder().encode( graph, branchStarts, branchStarts, null, upload::send );
+		upload.finish();
+		ViewServiceGrpc.ViewServiceBlockingStub stub = ViewServiceGrpc.newBlockingStub( channel );
+		if ( !compression.equals( MessageCompression.NONE ) )
+			stub = stub.withCompression( compression );
+		stub.setSpotColors( colors );
+	}
+
+	private static long compressedSize( ModelGraph graph, int[] branchStarts, SetSpotColorsRequest colors, String compression ) throws IOException
+	{
+		Codec codec = compression.equals( MessageCompression.NONE ) ? Codec.Identity.NONE
+				: ( Codec ) MessageCompression.compressorRegistry().lookupCompressor( compression );
+		CountingOutputStream counter = new CountingOutputStream();
+		newEncoder().encode( graph, branchStarts, branchStarts, null, buffer -> {
+			try (OutputStream out = codec.compress( counter ))
+			{
+				byte[] bytes = new byte[ buffer.remaining() ];
+				buffer.get( bytes );
+				out.write( bytes );
+			}
+			catch ( IOException e )
+			{
+				throw new RuntimeException( e );
+			}
+		} );
+		try (OutputStream out = codec.compress( counter ))
+		{
+			colors.writeTo( out );
+		}
+		return counter.count;
+	}
+
+	private static ParallelTrackletEncoder newEncoder()
+	{
+		return new ParallelTrackletEncoder( Runtime.getRuntime().availableProcessors(), new AffineTransform3D(), 10,
+				ViewServiceClient.MAX_SPOTS_PER_MESSAGE, ByteBuffer::allocate );
+	}
+
+	private static SetSpotColorsRequest createColorsRequest( int[] branchStarts )
+	{
+		SetSpotColorsRequest.Builder request = SetSpotColorsRequest.newBuilder();
+		for ( int i = 0; i < branchStarts.length; i++ )
+		{
+			request.addIds( branchStarts[ i ] );
+			request.addColors( PALETTE[ ( i / 16 ) % PALETTE.length ] );
+		}
+		return request.build();
+	}
+
+	private static class CountingOutputStream extends OutputStream
+	{
+		private long count = 0;
+
+		@Override
+		public void write( int b )
+		{
+			count++;
+		}
+
+		@Override
+		public void write( byte[] b, int off, int len )
+		{
+			count += len;
+		}
+
+		@Override
+		public void close()
+		{
+			// the codecs close the underlying stream, keep counting
+		}
+	}
+}
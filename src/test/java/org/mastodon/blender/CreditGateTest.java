@@ -0,0 +1,104 @@
+/*-
+ * #%L
+ * A Mastodon plugin data allows to show the embryo in Blender.
+ * %%
+ * Copyright (C) 2022 - 2025 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.blender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import org.junit.Test;
+
+public class CreditGateTest
+{
+	@Test
+	public void testAcquireBlocksUntilGranted() throws InterruptedException
+	{
+		CreditGate gate = new CreditGate( 10 );
+		gate.acquire( 8 );
+		CountDownLatch acquired = acquireInBackground( gate, 5 );
+		assertFalse( acquired.await( 100, TimeUnit.MILLISECONDS ) );
+		gate.grant( 8 );
+		assertTrue( acquired.await( 1, TimeUnit.SECONDS ) );
+	}
+
+	@Test
+	public void testMessageLargerThanBudget() throws InterruptedException
+	{
+		CreditGate gate = new CreditGate( 10 );
+		gate.acquire( 3 );
+		CountDownLatch acquired = acquireInBackground( gate, 25 );
+		assertFalse( acquired.await( 100, TimeUnit.MILLISECONDS ) );
+		gate.grant( 3 );
+		assertTrue( acquired.await( 1, TimeUnit.SECONDS ) );
+	}
+
+	@Test
+	public void testCloseReleasesWaitingThreads() throws InterruptedException
+	{
+		CreditGate gate = new CreditGate( 10 );
+		gate.acquire( 10 );
+		CountDownLatch acquired = acquireInBackground( gate, 1 );
+		gate.close();
+		assertTrue( acquired.await( 1, TimeUnit.SECONDS ) );
+	}
+
+	@Test
+	public void testStallTimeout()
+	{
+		CreditGate gate = new CreditGate( 10, 50, TimeUnit.MILLISECONDS );
+		gate.acquire( 10 );
+		try
+		{
+			gate.acquire( 1 );
+			fail();
+		}
+		catch ( StatusRuntimeException e )
+		{
+			assertEquals( Status.Code.DEADLINE_EXCEEDED, e.getStatus().getCode() );
+		}
+	}
+
+	private static CountDownLatch acquireInBackground( CreditGate gate, long items )
+	{
+		CountDownLatch acquired = new CountDownLatch( 1 );
+		Thread thread = new Thread( () -> {
+			gate.acquire( items );
+			acquired.countDown();
+		} );
+		thread.setDaemon( true );
+		thread.start();
+		return acquired;
+	}
+}
@@ -0,0 +1,122 @@
+/*-
+ * #%L
+ * A Mastodon plugin data allows to show the embryo in Blender.
+ * %%
+ * Copyright (C) 2022 - 2025 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.blender;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.grpc.Server;
+import io.grpc.netty.NettyServerBuilder;
+import io.grpc.stub.StreamObserver;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerDomainSocketChannel;
+import io.netty.channel.unix.DomainSocketAddress;
+import org.mastodon.AddMovingSpotRequest;
+import org.mastodon.Empty;
+import org.mastodon.SetSpotColorsRequest;
+import org.mastodon.ViewServiceGrpc;
+
+/**
+ * A view service that runs in this JVM and only counts the received spots
+ * and colors. Used to benchmark uploads without Blender.
+ */
+class FakeViewService extends ViewServiceGrpc.ViewServiceImplBase
+{
+	final AtomicLong receivedSpots = new AtomicLong();
+
+	final AtomicLong receivedColors = new AtomicLong();
+
+	private Server server;
+
+	private EventLoopGroup eventLoopGroup;
+
+	void start( BlenderAddress address ) throws IOException
+	{
+		NettyServerBuilder builder;
+		if ( address.isUnixSocket() )
+		{
+			eventLoopGroup = new EpollEventLoopGroup( 1 );
+			builder = NettyServerBuilder.forAddress( new DomainSocketAddress( address.getSocketPath().toString() ) )
+					.channelType( EpollServerDomainSocketChannel.class )
+					.bossEventLoopGroup( eventLoopGroup )
+					.workerEventLoopGroup( eventLoopGroup );
+		}
+		else
+			builder = NettyServerBuilder.forAddress( new InetSocketAddress( "localhost", address.getPort() ) );
+		server = builder
+				.decompressorRegistry( MessageCompression.decompressorRegistry() )
+				.addService( this )
+				.build()
+				.start();
+	}
+
+	void shutdown() throws InterruptedException
+	{
+		server.shutdown().awaitTermination( 5, TimeUnit.SECONDS );
+		if ( eventLoopGroup != null )
+			eventLoopGroup.shutdownGracefully().sync();
+	}
+
+	@Override
+	public StreamObserver< AddMovingSpotRequest > addMovingSpots( StreamObserver< Empty > responseObserver )
+	{
+		return new StreamObserver< AddMovingSpotRequest >()
+		{
+			@Override
+			public void onNext( AddMovingSpotRequest request )
+			{
+				receivedSpots.addAndGet( request.getPackedTimepoints().size() / Integer.BYTES );
+			}
+
+			@Override
+			public void onError( Throwable throwable )
+			{
+				// nothing to do
+			}
+
+			@Override
+			public void onCompleted()
+			{
+				responseObserver.onNext( Empty.getDefaultInstance() );
+				responseObserver.onCompleted();
+			}
+		};
+	}
+
+	@Override
+	public void setSpotColors( SetSpotColorsRequest request, StreamObserver< Empty > responseObserver )
+	{
+		receivedColors.addAndGet( request.getColorsCount() );
+		responseObserver.onNext( Empty.getDefaultInstance() );
+		responseObserver.onCompleted();
+	}
+}
@@ -0,0 +1,79 @@
+/*-
+ * #%L
+ * A Mastodon plugin data allows to show the embryo in Blender.
+ * %%
+ * Copyright (C) 2022 - 2025 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.blender;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.imglib2.realtransform.AffineTransform3D;
+import org.junit.Test;
+import org.mastodon.blender.utils.BranchGraphUtils;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+
+public class ParallelTrackletEncoderTest
+{
+	@Test
+	public void testOutputIsIndependentOfThreadCount()
+	{
+		ModelGraph graph = SyntheticLineage.create( 9, 5 ).getGraph();
+		int[] branchStarts = branchStarts( graph );
+		assertEquals( 511, branchStarts.length );
+		List< byte[] > expected = encode( graph, branchStarts, 1 );
+		assertEquals( 511, expected.size() );
+		List< byte[] > actual = encode( graph, branchStarts, 4 );
+		assertEquals( expected.size(), actual.size() );
+		for ( int i = 0; i < expected.size(); i++ )
+			assertArrayEquals( expected.get( i ), actual.get( i ) );
+	}
+
+	private static List< byte[] > encode( ModelGraph graph, int[] branchStarts, int parallelism )
+	{
+		List< byte[] > messages = new ArrayList<>();
+		ParallelTrackletEncoder encoder = new ParallelTrackletEncoder( parallelism, new AffineTransform3D(), 1, 100, ByteBuffer::allocate );
+		encoder.encode( graph, branchStarts, branchStarts, null, buffer -> {
+			byte[] bytes = new byte[ buffer.remaining() ];
+			buffer.get( bytes );
+			messages.add( bytes );
+		} );
+		return messages;
+	}
+
+	private static int[] branchStarts( ModelGraph graph )
+	{
+		return BranchGraphUtils.getAllBranchStarts( graph ).stream()
+				.mapToInt( Spot::getInternalPoolIndex )
+				.sorted()
+				.toArray();
+	}
+}
@@ -0,0 +1,89 @@
+/*-
+ * #%L
+ * A Mastodon plugin data allows to show the embryo in Blender.
+ * %%
+ * Copyright (C) 2022 - 2025 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.blender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.util.concurrent.SettableFuture;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import org.junit.Test;
+
+public class PipelinedSenderTest
+{
+	@Test
+	public void testSequenceIsSentInOrder()
+	{
+		List< String > sent = new ArrayList<>();
+		List< SettableFuture< Object > > futures = new ArrayList<>();
+		PipelinedSender sender = new PipelinedSender( 4 );
+		sender.send( Arrays.asList( "a", "b", "c" ), request -> {
+			sent.add( request );
+			SettableFuture< Object > future = SettableFuture.create();
+			futures.add( future );
+			return future;
+		} );
+		assertEquals( Arrays.asList( "a" ), sent );
+		futures.get( 0 ).set( null );
+		assertEquals( Arrays.asList( "a", "b" ), sent );
+		futures.get( 1 ).set( null );
+		futures.get( 2 ).set( null );
+		assertEquals( Arrays.asList( "a", "b", "c" ), sent );
+		sender.flush();
+	}
+
+	@Test
+	public void testFirstFailureIsThrownByFlush()
+	{
+		PipelinedSender sender = new PipelinedSender( 2 );
+		sender.send( "a", request -> failedFuture( Status.UNAVAILABLE ) );
+		sender.send( "b", request -> failedFuture( Status.INTERNAL ) );
+		try
+		{
+			sender.flush();
+			fail();
+		}
+		catch ( StatusRuntimeException e )
+		{
+			assertEquals( Status.Code.UNAVAILABLE, e.getStatus().getCode() );
+		}
+	}
+
+	private static SettableFuture< Object > failedFuture( Status status )
+	{
+		SettableFuture< Object > future = SettableFuture.create();
+		future.setException( status.asRuntimeException() );
+		return future;
+	}
+}
@@ -0,0 +1,74 @@
+/*-
+ * #%L
+ * A Mastodon plugin data allows to show the embryo in Blender.
+ * %%
+ * Copyright (C) 2022 - 2025 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.blender;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.mastodon.ColorRuns;
+
+public class SentColorRunsTest
+{
+	@Test
+	public void testOnlyChangedRunsAreSent()
+	{
+		SentColorRuns sentRuns = new SentColorRuns();
+		ColorRuns runs = runs( 5, 0, 1, 10, 2 );
+		assertTrue( sentRuns.changed( runs ) );
+		sentRuns.update( runs );
+		assertFalse( sentRuns.changed( runs( 5, 0, 1, 10, 2 ) ) );
+		assertTrue( sentRuns.changed( runs( 5, 0, 1, 11, 2 ) ) );
+		assertTrue( sentRuns.changed( runs( 6, 0, 1, 10, 2 ) ) );
+	}
+
+	@Test
+	public void testForgottenRunsAreSentAgain()
+	{
+		SentColorRuns sentRuns = new SentColorRuns();
+		sentRuns.update( runs( 3, 0, 1 ) );
+		sentRuns.update( runs( 7, 0, 1 ) );
+		sentRuns.forget( new int[] { 7 } );
+		assertFalse( sentRuns.changed( runs( 3, 0, 1 ) ) );
+		assertTrue( sentRuns.changed( runs( 7, 0, 1 ) ) );
+		sentRuns.clear();
+		assertTrue( sentRuns.changed( runs( 3, 0, 1 ) ) );
+	}
+
+	/**
+	 * Returns the runs of a tracklet, given as pairs of frame and color.
+	 */
+	private static ColorRuns runs( int id, int... framesAndColors )
+	{
+		ColorRuns.Builder runs = ColorRuns.newBuilder().setId( id );
+		for ( int i = 0; i < framesAndColors.length; i += 2 )
+			runs.addFrames( framesAndColors[ i ] ).addColors( framesAndColors[ i + 1 ] );
+		return runs.build();
+	}
+}
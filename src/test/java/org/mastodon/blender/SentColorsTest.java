@@ -0,0 +1,59 @@
+/*-
+ * #%L
+ * A Mastodon plugin data allows to show the embryo in Blender.
+ * %%
+ * Copyright (C) 2022 - 2025 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.blender;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import org.junit.Test;
+
+public class SentColorsTest
+{
+	@Test
+	public void testOnlyChangedColorsAreSent()
+	{
+		SentColors sentColors = new SentColors();
+		int[] ids = { 3, 7, 100 };
+		assertArrayEquals( new int[] { 0, 1, 2 }, sentColors.changed( ids, new int[] { 1, 2, 3 } ) );
+		sentColors.update( ids, new int[] { 1, 2, 3 } );
+		assertArrayEquals( new int[] {}, sentColors.changed( ids, new int[] { 1, 2, 3 } ) );
+		assertArrayEquals( new int[] { 1 }, sentColors.changed( ids, new int[] { 1, 5, 3 } ) );
+	}
+
+	@Test
+	public void testForgottenColorsAreSentAgain()
+	{
+		SentColors sentColors = new SentColors();
+		int[] ids = { 3, 7 };
+		sentColors.update( ids, new int[] { 0, 0 } );
+		sentColors.forget( new int[] { 7 } );
+		assertArrayEquals( new int[] { 1 }, sentColors.changed( ids, new int[] { 0, 0 } ) );
+		sentColors.clear();
+		assertArrayEquals( new int[] { 0, 1 }, sentColors.changed( ids, new int[] { 0, 0 } ) );
+	}
+}
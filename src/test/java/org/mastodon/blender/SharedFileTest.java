@@ -0,0 +1,122 @@
+/*-
+ * #%L
+ * A Mastodon plugin data allows to show the embryo in Blender.
+ * %%
+ * Copyright (C) 2022 - 2025 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.blender;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import net.imglib2.realtransform.AffineTransform3D;
+import org.junit.Test;
+import org.mastodon.SharedFileRequest;
+import org.mastodon.blender.utils.BranchGraphUtils;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+
+public class SharedFileTest
+{
+	@Test
+	public void testWriteTracklets() throws IOException
+	{
+		ModelGraph graph = SyntheticLineage.create( 3, 5 ).getGraph();
+		int[] branchStarts = BranchGraphUtils.getAllBranchStarts( graph ).stream()
+				.mapToInt( Spot::getInternalPoolIndex )
+				.sorted()
+				.toArray();
+		int[] ids = new TrackletIdRegistry().getOrAssign( branchStarts );
+		SharedFileRequest request = SharedFile.writeTracklets( graph, branchStarts, ids, new AffineTransform3D(), 10 );
+		try
+		{
+			ByteBuffer data = read( request );
+			assertEquals( SharedFile.MAGIC, data.getInt( 0 ) );
+			assertEquals( SharedFile.VERSION, data.getInt( 4 ) );
+			assertEquals( SharedFile.KIND_TRACKLETS, data.getInt( 8 ) );
+			assertEquals( 7, data.getInt( 12 ) );
+			// the root tracklet has 5 spots, the other six tracklets also include the spot before the division
+			int spotCount = 5 + 6 * 6;
+			assertEquals( spotCount, data.getInt( 16 ) );
+			int table = SharedFile.HEADER_SIZE;
+			int timepoints = table + 7 * SharedFile.TRACKLET_ENTRY_SIZE + spotCount * 3 * Float.BYTES;
+			int labels = timepoints + spotCount * Integer.BYTES;
+			int firstSpot = 0;
+			for ( int i = 0; i < 7; i++ )
+			{
+				int entry = table + i * SharedFile.TRACKLET_ENTRY_SIZE;
+				assertEquals( i, data.getInt( entry ) );
+				assertEquals( firstSpot, data.getInt( entry + 4 ) );
+				firstSpot += data.getInt( entry + 8 );
+				Spot spot = graph.vertices().getRefPool().getObject( branchStarts[ i ], graph.vertexRef() );
+				byte[] label = new byte[ data.getInt( entry + 16 ) ];
+				data.position( labels + data.getInt( entry + 12 ) );
+				data.get( label );
+				assertEquals( spot.getLabel(), new String( label, StandardCharsets.UTF_8 ) );
+			}
+			assertEquals( spotCount, firstSpot );
+			assertEquals( request.getLength(), data.limit() );
+			// the root tracklet covers timepoints 0 to 4, scaled by 10
+			for ( int t = 0; t < 5; t++ )
+				assertEquals( t * 10, data.getInt( timepoints + t * Integer.BYTES ) );
+		}
+		finally
+		{
+			SharedFile.delete( request );
+		}
+	}
+
+	@Test
+	public void testWriteColors() throws IOException
+	{
+		SharedFileRequest request = SharedFile.writeColors( new int[] { 3, 5 }, new int[] { 0xff0000, 0x00ff00 } );
+		try
+		{
+			ByteBuffer data = read( request );
+			assertEquals( SharedFile.KIND_COLORS, data.getInt( 8 ) );
+			assertEquals( 2, data.getInt( 12 ) );
+			assertEquals( 3, data.getInt( 32 ) );
+			assertEquals( 0xff0000, data.getInt( 36 ) );
+			assertEquals( 5, data.getInt( 40 ) );
+			assertEquals( 0x00ff00, data.getInt( 44 ) );
+		}
+		finally
+		{
+			SharedFile.delete( request );
+		}
+	}
+
+	private static ByteBuffer read( SharedFileRequest request ) throws IOException
+	{
+		byte[] bytes = Files.readAllBytes( Paths.get( request.getPath() ) );
+		return ByteBuffer.wrap( bytes ).order( ByteOrder.LITTLE_ENDIAN );
+	}
+}
@@ -0,0 +1,91 @@
+/*-
+ * #%L
+ * A Mastodon plugin data allows to show the embryo in Blender.
+ * %%
+ * Copyright (C) 2022 - 2025 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.blender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class SyncSchedulerTest
+{
+	@Test
+	public void testBurstIsCoalesced() throws InterruptedException
+	{
+		List< String > runs = Collections.synchronizedList( new ArrayList<>() );
+		CountDownLatch release = new CountDownLatch( 1 );
+		CountDownLatch done = new CountDownLatch( 2 );
+		Runnable blocker = () -> await( release );
+		Runnable graph = () -> {
+			runs.add( "graph" );
+			done.countDown();
+		};
+		Runnable colors = () -> {
+			runs.add( "colors" );
+			done.countDown();
+		};
+		SyncScheduler scheduler = new SyncScheduler( "test-sync", 10, graph, colors, blocker );
+		scheduler.markDirty( blocker );
+		while ( scheduler.getFlushCount() == 0 )
+			Thread.sleep( 1 );
+		// the first flush is blocked, all events meanwhile go into the next flush
+		for ( int i = 0; i < 100; i++ )
+		{
+			scheduler.markDirty( colors );
+			scheduler.markDirty( graph );
+		}
+		release.countDown();
+		assertTrue( done.await( 1, TimeUnit.SECONDS ) );
+		assertEquals( Arrays.asList( "graph", "colors" ), runs );
+		assertEquals( 201, scheduler.getEventCount() );
+		assertEquals( 2, scheduler.getFlushCount() );
+		assertEquals( 200, scheduler.getLastEventsPerFlush() );
+		assertEquals( 200, scheduler.getMaxEventsPerFlush() );
+		scheduler.shutdown();
+	}
+
+	private static void await( CountDownLatch latch )
+	{
+		try
+		{
+			latch.await();
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,92 @@
+/*-
+ * #%L
+ * A Mastodon plugin data allows to show the embryo in Blender.
+ * %%
+ * Copyright (C) 2022 - 2025 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.blender;
+
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+
+/**
+ * Creates synthetic cell lineages for tests and benchmarks.
+ */
+public class SyntheticLineage
+{
+	private SyntheticLineage()
+	{
+		// prevent instantiation
+	}
+
+	/**
+	 * Returns a model with a binary lineage tree. Every branch is
+	 * {@code branchLength} spots long, the tree has {@code generations}
+	 * generations, i.e. 2^generations - 1 branches. The spots move on
+	 * smooth paths.
+	 */
+	public static Model create( int generations, int branchLength )
+	{
+		Model model = new Model();
+		ModelGraph graph = model.getGraph();
+		Spot root = graph.vertexRef();
+		graph.addVertex( root ).init( 0, new double[] { 0, 0, 0 }, 1 );
+		addBranch( graph, root, 0, generations, branchLength );
+		graph.releaseRef( root );
+		return model;
+	}
+
+	private static void addBranch( ModelGraph graph, Spot first, int generation, int generations, int branchLength )
+	{
+		Spot previous = graph.vertexRef();
+		Spot spot = graph.vertexRef();
+		previous.refTo( first );
+		double[] position = new double[ 3 ];
+		for ( int i = 1; i < branchLength; i++ )
+		{
+			previous.localize( position );
+			position[ 0 ] += Math.cos( 0.1 * i + generation );
+			position[ 1 ] += Math.sin( 0.1 * i + generation );
+			position[ 2 ] += 0.1 * generation;
+			graph.addVertex( spot ).init( previous.getTimepoint() + 1, position, 1 );
+			graph.addEdge( previous, spot ).init();
+			previous.refTo( spot );
+		}
+		if ( generation + 1 < generations )
+		{
+			for ( int child = 0; child < 2; child++ )
+			{
+				previous.localize( position );
+				position[ 0 ] += child == 0 ? 1 : -1;
+				graph.addVertex( spot ).init( previous.getTimepoint() + 1, position, 1 );
+				graph.addEdge( previous, spot ).init();
+				addBranch( graph, spot, generation + 1, generations, branchLength );
+			}
+		}
+		graph.releaseRef( previous );
+		graph.releaseRef( spot );
+	}
+}
@@ -0,0 +1,201 @@
+/*-
+ * #%L
+ * A Mastodon plugin data allows to show the embryo in Blender.
+ * %%
+ * Copyright (C) 2022 - 2025 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.blender;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mastodon.collection.RefSet;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+
+public class TrackletChangeTrackerTest
+{
+	private ModelGraph graph;
+
+	private TrackletIdRegistry trackletIds;
+
+	private TrackletChangeTracker tracker;
+
+	private Spot root;
+
+	private Spot division;
+
+	private Spot first;
+
+	private Spot second;
+
+	@Before
+	public void before()
+	{
+		graph = SyntheticLineage.create( 2, 3 ).getGraph();
+		trackletIds = new TrackletIdRegistry();
+		tracker = new TrackletChangeTracker( graph, trackletIds );
+		tracker.reset();
+		graph.addGraphListener( tracker );
+		root = findRoot();
+		division = root;
+		Link edge = graph.edgeRef();
+		while ( division.outgoingEdges().size() == 1 )
+			division = division.outgoingEdges().get( 0, edge ).getTarget( graph.vertexRef() );
+		first = division.outgoingEdges().get( 0, edge ).getTarget( graph.vertexRef() );
+		second = division.outgoingEdges().get( 1, edge ).getTarget( graph.vertexRef() );
+	}
+
+	@Test
+	public void testNoChanges()
+	{
+		assertTrue( tracker.collectChanges().isEmpty() );
+	}
+
+	@Test
+	public void testExtendBranch()
+	{
+		Spot last = lastSpot( first );
+		Spot spot = graph.addVertex().init( last.getTimepoint() + 1, new double[] { 0, 0, 0 }, 1 );
+		graph.addEdge( last, spot ).init();
+		TrackletChangeTracker.Changes changes = tracker.collectChanges();
+		assertEquals( 1, changes.upserts.size() );
+		assertTrue( changes.upserts.contains( first ) );
+		assertEquals( 0, changes.deletedIds.length );
+		assertTrue( tracker.collectChanges().isEmpty() );
+	}
+
+	@Test
+	public void testRemoveDivision()
+	{
+		// the first child is merged into the root tracklet, the second child becomes a new root
+		int firstId = idOf( first );
+		graph.remove( graph.getEdge( division, second ) );
+		TrackletChangeTracker.Changes changes = tracker.collectChanges();
+		assertTrue( changes.upserts.contains( root ) );
+		assertTrue( changes.upserts.contains( second ) );
+		assertFalse( changes.upserts.contains( first ) );
+		assertArrayEquals( new int[] { firstId }, changes.deletedIds );
+		assertFalse( changes.deleteAll );
+		assertEquals( -1, idOf( first ) );
+	}
+
+	@Test
+	public void testRemoveBranchStart()
+	{
+		int[] expected = { idOf( second ), idOf( first ) };
+		Spot next = second.outgoingEdges().get( 0 ).getTarget();
+		graph.remove( second );
+		TrackletChangeTracker.Changes changes = tracker.collectChanges();
+		assertTrue( changes.upserts.contains( root ) );
+		assertTrue( changes.upserts.contains( next ) );
+		Arrays.sort( expected );
+		assertArrayEquals( expected, changes.deletedIds );
+	}
+
+	@Test
+	public void testMoveSpot()
+	{
+		tracker.vertexPositionChanged( lastSpot( first ) );
+		TrackletChangeTracker.Changes changes = tracker.collectChanges();
+		assertEquals( 1, changes.upserts.size() );
+		assertTrue( changes.upserts.contains( first ) );
+		assertEquals( 0, changes.deletedIds.length );
+	}
+
+	@Test
+	public void testMoveSpotBeforeDivision()
+	{
+		// both children include the spot before the division
+		tracker.vertexPositionChanged( division );
+		TrackletChangeTracker.Changes changes = tracker.collectChanges();
+		assertEquals( 3, changes.upserts.size() );
+		assertTrue( changes.upserts.contains( root ) );
+		assertTrue( changes.upserts.contains( first ) );
+		assertTrue( changes.upserts.contains( second ) );
+	}
+
+	@Test
+	public void testRetaggedTrackletStarts()
+	{
+		// only the first spot of a tracklet determines its color
+		tracker.vertexTagChanged( second );
+		tracker.vertexTagChanged( division );
+		RefSet< Spot > trackletStarts = tracker.collectRetaggedTrackletStarts();
+		assertEquals( 1, trackletStarts.size() );
+		assertTrue( trackletStarts.contains( second ) );
+		assertTrue( tracker.collectRetaggedTrackletStarts().isEmpty() );
+	}
+
+	@Test
+	public void testIdsAreDenseAndReused()
+	{
+		int[] ids = { idOf( root ), idOf( first ), idOf( second ) };
+		Arrays.sort( ids );
+		assertArrayEquals( new int[] { 0, 1, 2 }, ids );
+		// first is merged into root, next and the new spot start new tracklets
+		Spot next = second.outgoingEdges().get( 0 ).getTarget();
+		graph.remove( second );
+		Spot spot = graph.addVertex().init( 0, new double[] { 0, 0, 0 }, 1 );
+		TrackletChangeTracker.Changes changes = tracker.collectChanges();
+		assertTrue( changes.upserts.contains( next ) );
+		assertTrue( changes.upserts.contains( spot ) );
+		// the deleted ids are not reused, until the deletion was sent
+		ids = new int[] { idOf( next ), idOf( spot ) };
+		Arrays.sort( ids );
+		assertArrayEquals( new int[] { 3, 4 }, ids );
+		Spot other = graph.addVertex().init( 0, new double[] { 0, 0, 0 }, 1 );
+		tracker.collectChanges();
+		assertTrue( idOf( other ) < 3 );
+	}
+
+	private int idOf( Spot branchStart )
+	{
+		return trackletIds.getId( branchStart.getInternalPoolIndex() );
+	}
+
+	private Spot findRoot()
+	{
+		for ( Spot spot : graph.vertices() )
+			if ( spot.incomingEdges().isEmpty() )
+				return graph.vertices().getRefPool().getObject( spot.getInternalPoolIndex(), graph.vertexRef() );
+		throw new AssertionError( "no root" );
+	}
+
+	private Spot lastSpot( Spot branchStart )
+	{
+		Spot spot = graph.vertexRef().refTo( branchStart );
+		while ( spot.outgoingEdges().size() == 1 )
+			spot = spot.outgoingEdges().get( 0 ).getTarget( spot );
+		return spot;
+	}
+}
@@ -0,0 +1,191 @@
+/*-
+ * #%L
+ * A Mastodon plugin data allows to show the embryo in Blender.
+ * %%
+ * Copyright (C) 2022 - 2025 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.blender;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import net.imglib2.realtransform.AffineTransform3D;
+import org.junit.Test;
+import org.mastodon.AddMovingSpotRequest;
+import org.mastodon.ArrayFormat;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+
+public class TrackletEncoderTest
+{
+	@Test
+	public void testEncode() throws InvalidProtocolBufferException
+	{
+		ModelGraph graph = createBranch( 5 );
+		List< AddMovingSpotRequest > messages = encode( graph, 100 );
+		assertEquals( 1, messages.size() );
+		AddMovingSpotRequest message = messages.get( 0 );
+		assertEquals( ArrayFormat.PACKED_LITTLE_ENDIAN, message.getFormat() );
+		assertFalse( message.getHasMore() );
+		assertArrayEquals( new int[] { 0, 2, 4, 6, 8 }, toIntArray( message ) );
+		assertArrayEquals( new float[] { 0, 1, 2, 1, 2, 3, 2, 3, 4, 3, 4, 5, 4, 5, 6 }, toFloatArray( message ), 0 );
+	}
+
+	@Test
+	public void testEncodeChunks() throws InvalidProtocolBufferException
+	{
+		ModelGraph graph = createBranch( 5 );
+		List< AddMovingSpotRequest > messages = encode( graph, 2 );
+		assertEquals( 3, messages.size() );
+		assertTrue( messages.get( 0 ).getHasMore() );
+		assertTrue( messages.get( 1 ).getHasMore() );
+		assertFalse( messages.get( 2 ).getHasMore() );
+		assertFalse( messages.get( 0 ).getLabel().isEmpty() );
+		assertTrue( messages.get( 1 ).getLabel().isEmpty() );
+		assertArrayEquals( new int[] { 0, 2 }, toIntArray( messages.get( 0 ) ) );
+		assertArrayEquals( new int[] { 4, 6 }, toIntArray( messages.get( 1 ) ) );
+		assertArrayEquals( new int[] { 8 }, toIntArray( messages.get( 2 ) ) );
+	}
+
+	@Test
+	public void testEncodeColor() throws InvalidProtocolBufferException
+	{
+		ModelGraph graph = createBranch( 5 );
+		List< AddMovingSpotRequest > messages = encode( graph, 2, 0xff8000 );
+		assertEquals( 3, messages.size() );
+		assertTrue( messages.get( 0 ).hasColor() );
+		assertEquals( 0xff8000, messages.get( 0 ).getColor() );
+		assertFalse( messages.get( 1 ).hasColor() );
+		assertFalse( messages.get( 2 ).hasColor() );
+		assertFalse( encode( graph, 2 ).get( 0 ).hasColor() );
+	}
+
+	/**
+	 * The {@link TrackletDataService} encodes into pooled buffers, such that
+	 * serving tracklets doesn't allocate memory per spot.
+	 */
+	@Test
+	public void testAllocationPerSpot()
+	{
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		assumeTrue( bean instanceof com.sun.management.ThreadMXBean );
+		com.sun.management.ThreadMXBean threadBean = ( com.sun.management.ThreadMXBean ) bean;
+		assumeTrue( threadBean.isThreadAllocatedMemorySupported() );
+		threadBean.setThreadAllocatedMemoryEnabled( true );
+		int spots = 10_000;
+		int iterations = 200;
+		ModelGraph graph = createBranch( spots );
+		BufferPool pool = new BufferPool( 16 << 20 );
+		Spot branchStart = graph.vertices().iterator().next();
+		try (TrackletEncoder encoder = new TrackletEncoder( graph, new AffineTransform3D(), 1, 100_000, pool::acquire, pool::release ))
+		{
+			for ( int i = 0; i < 5 * iterations; i++ ) // warm up, until the JIT compiled the encoder
+				encoder.encode( branchStart, 0 );
+			// the JIT or the test runner may allocate on this thread, the best of some rounds counts
+			long threadId = Thread.currentThread().getId();
+			double bytesPerSpot = Double.MAX_VALUE;
+			for ( int round = 0; round < 5; round++ )
+			{
+				long before = threadBean.getThreadAllocatedBytes( threadId );
+				for ( int i = 0; i < iterations; i++ )
+					encoder.encode( branchStart, 0 );
+				long after = threadBean.getThreadAllocatedBytes( threadId );
+				bytesPerSpot = Math.min( bytesPerSpot, ( double ) ( after - before ) / iterations / spots );
+			}
+			// any object allocated per spot takes at least 16 bytes
+			assertTrue( "Allocated " + bytesPerSpot + " bytes per spot.", bytesPerSpot < 2 );
+		}
+	}
+
+	private static List< AddMovingSpotRequest > encode( ModelGraph graph, int maxSpotsPerMessage ) throws InvalidProtocolBufferException
+	{
+		return encode( graph, maxSpotsPerMessage, null );
+	}
+
+	private static List< AddMovingSpotRequest > encode( ModelGraph graph, int maxSpotsPerMessage, Integer color ) throws InvalidProtocolBufferException
+	{
+		List< ByteBuffer > buffers = new ArrayList<>();
+		try (TrackletEncoder encoder = new TrackletEncoder( graph, new AffineTransform3D(), 2, maxSpotsPerMessage, ByteBuffer::allocate, buffers::add ))
+		{
+			Spot branchStart = graph.vertices().iterator().next();
+			if ( color == null )
+				encoder.encode( branchStart, 0 );
+			else
+				encoder.encode( branchStart, 0, color );
+		}
+		List< AddMovingSpotRequest > messages = new ArrayList<>();
+		for ( ByteBuffer buffer : buffers )
+			messages.add( AddMovingSpotRequest.parseFrom( buffer ) );
+		return messages;
+	}
+
+	/**
+	 * Returns a graph with a single branch of the given length. Spot i has
+	 * timepoint i and position (i, i + 1, i + 2).
+	 */
+	private static ModelGraph createBranch( int length )
+	{
+		ModelGraph graph = new Model().getGraph();
+		Spot previous = graph.vertexRef();
+		Spot spot = graph.vertexRef();
+		for ( int i = 0; i < length; i++ )
+		{
+			graph.addVertex( spot ).init( i, new double[] { i, i + 1, i + 2 }, 1 );
+			if ( i > 0 )
+				graph.addEdge( previous, spot ).init();
+			previous.refTo( spot );
+		}
+		graph.releaseRef( previous );
+		graph.releaseRef( spot );
+		return graph;
+	}
+
+	private static int[] toIntArray( AddMovingSpotRequest message )
+	{
+		ByteBuffer buffer = message.getPackedTimepoints().asReadOnlyByteBuffer().order( ByteOrder.LITTLE_ENDIAN );
+		int[] values = new int[ buffer.remaining() / Integer.BYTES ];
+		buffer.asIntBuffer().get( values );
+		return values;
+	}
+
+	private static float[] toFloatArray( AddMovingSpotRequest message )
+	{
+		ByteBuffer buffer = message.getPackedCoordinates().asReadOnlyByteBuffer().order( ByteOrder.LITTLE_ENDIAN );
+		float[] values = new float[ buffer.remaining() / Float.BYTES ];
+		buffer.asFloatBuffer().get( values );
+		return values;
+	}
+}
@@ -0,0 +1,132 @@
+/*-
+ * #%L
+ * A Mastodon plugin data allows to show the embryo in Blender.
+ * %%
+ * Copyright (C) 2022 - 2025 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.blender;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import com.google.protobuf.ByteString;
+import io.grpc.ManagedChannel;
+import io.netty.channel.epoll.Epoll;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.mastodon.AddMovingSpotRequest;
+import org.mastodon.ArrayFormat;
+import org.mastodon.ViewServiceGrpc;
+import org.mastodon.blender.setup.StartBlender;
+
+/**
+ * Compares the throughput of the TCP and the Unix domain socket transport,
+ * by uploading tracklets to a fake view service that runs in this JVM.
+ */
+public class TransportThroughputTest
+{
+	private static final int SPOTS_PER_MESSAGE = 50_000;
+
+	private static final int MESSAGES = 200;
+
+	@Ignore( "Benchmark, takes long. Run it manually." )
+	@Test
+	public void testCompareThroughput() throws Exception
+	{
+		double tcp = measureThroughput( BlenderAddress.tcp( StartBlender.getFreePort() ) );
+		System.out.printf( "TCP:                %8.1f MB/s%n", tcp );
+		if ( !Epoll.isAvailable() )
+		{
+			System.out.println( "Unix domain socket: not available on this system" );
+			return;
+		}
+		Path directory = Files.createTempDirectory( "mastodon-blender-test" );
+		Path socket = directory.resolve( "test.sock" );
+		try
+		{
+			double uds = measureThroughput( BlenderAddress.unixSocket( socket ) );
+			System.out.printf( "Unix domain socket: %8.1f MB/s%n", uds );
+		}
+		finally
+		{
+			Files.deleteIfExists( socket );
+			Files.delete( directory );
+		}
+	}
+
+	/**
+	 * Uploads the tracklets twice, once for warm up, and returns the
+	 * throughput of the second upload in MB/s.
+	 */
+	private static double measureThroughput( BlenderAddress address ) throws IOException, InterruptedException
+	{
+		AddMovingSpotRequest request = createRequest();
+		FakeViewService service = new FakeViewService();
+		service.start( address );
+		ManagedChannel channel = address.channelBuilder().build();
+		try
+		{
+			ViewServiceGrpc.ViewServiceStub stub = ViewServiceGrpc.newStub( channel );
+			upload( stub, request );
+			long start = System.nanoTime();
+			upload( stub, request );
+			long time = System.nanoTime() - start;
+			assertEquals( 2L * MESSAGES * SPOTS_PER_MESSAGE, service.receivedSpots.get() );
+			return ( double ) MESSAGES * request.getSerializedSize() / 1e6 / ( time / 1e9 );
+		}
+		finally
+		{
+			channel.shutdown().awaitTermination( 5, TimeUnit.SECONDS );
+			service.shutdown();
+		}
+	}
+
+	private static void upload( ViewServiceGrpc.ViewServiceStub stub, AddMovingSpotRequest request )
+	{
+		StreamingUpload< AddMovingSpotRequest > upload = new StreamingUpload<>();
+		stub.addMovingSpots( upload );
+		for ( int i = 0; i < MESSAGES; i++ )
+			upload.send( request );
+		upload.finish();
+	}
+
+	private static AddMovingSpotRequest createRequest()
+	{
+		byte[] coordinates = new byte[ SPOTS_PER_MESSAGE * 3 * Float.BYTES ];
+		byte[] timepoints = new byte[ SPOTS_PER_MESSAGE * Integer.BYTES ];
+		for ( int i = 0; i < coordinates.length; i++ )
+			coordinates[ i ] = ( byte ) i;
+		return AddMovingSpotRequest.newBuilder()
+				.setId( 42 )
+				.setFormat( ArrayFormat.PACKED_LITTLE_ENDIAN )
+				.setPackedCoordinates( ByteString.copyFrom( coordinates ) )
+				.setPackedTimepoints( ByteString.copyFrom( timepoints ) )
+				.build();
+	}
+}
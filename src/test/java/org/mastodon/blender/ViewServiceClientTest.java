@@ -0,0 +1,151 @@
+/*-
+ * #%L
+ * A Mastodon plugin data allows to show the embryo in Blender.
+ * %%
+ * Copyright (C) 2022 - 2025 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.blender;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+
+import com.google.protobuf.ByteString;
+import org.junit.Test;
+import org.mastodon.AddMovingSpotRequest;
+import org.mastodon.ArrayFormat;
+import org.mastodon.Capability;
+import org.mastodon.ColorRuns;
+import org.mastodon.VersionResponse;
+
+public class ViewServiceClientTest
+{
+	@Test
+	public void testSplitIntoChunks()
+	{
+		int n = 2 * ViewServiceClient.MAX_SPOTS_PER_MESSAGE + 1;
+		List< AddMovingSpotRequest > chunks = ViewServiceClient.splitIntoChunks( packedRequest( 42, n ) );
+		assertEquals( 3, chunks.size() );
+		assertEquals( "tracklet", chunks.get( 0 ).getLabel() );
+		assertTrue( chunks.get( 0 ).getHasMore() );
+		assertTrue( chunks.get( 1 ).getHasMore() );
+		assertFalse( chunks.get( 2 ).getHasMore() );
+		assertEquals( 3 * Float.BYTES, chunks.get( 2 ).getPackedCoordinates().size() );
+		ByteBuffer lastTimepoints = chunks.get( 2 ).getPackedTimepoints().asReadOnlyByteBuffer().order( ByteOrder.LITTLE_ENDIAN );
+		assertEquals( Integer.BYTES, lastTimepoints.remaining() );
+		assertEquals( n - 1, lastTimepoints.getInt() );
+		for ( AddMovingSpotRequest chunk : chunks )
+		{
+			assertEquals( 42, chunk.getId() );
+			assertEquals( ArrayFormat.PACKED_LITTLE_ENDIAN, chunk.getFormat() );
+		}
+	}
+
+	@Test
+	public void testSplitIntoChunksShortTracklet()
+	{
+		List< AddMovingSpotRequest > chunks = ViewServiceClient.splitIntoChunks( packedRequest( 1, 1 ) );
+		assertEquals( 1, chunks.size() );
+		assertFalse( chunks.get( 0 ).getHasMore() );
+	}
+
+	@Test
+	public void testReplacedTrackletsForgetTheirColorRuns()
+	{
+		List< AddMovingSpotRequest > chunks = new ArrayList<>();
+		chunks.addAll( ViewServiceClient.splitIntoChunks( packedRequest( 42, 2 * ViewServiceClient.MAX_SPOTS_PER_MESSAGE ) ) );
+		chunks.addAll( ViewServiceClient.splitIntoChunks( packedRequest( 7, 1 ) ) );
+		int[] ids = ViewServiceClient.trackletIds( chunks );
+		assertArrayEquals( new int[] { 42, 7 }, ids );
+		// the runs of a replaced tracklet are sent again, even if unchanged
+		SentColorRuns sentRuns = new SentColorRuns();
+		ColorRuns runs = ColorRuns.newBuilder().setId( 42 ).addFrames( 0 ).addColors( 0xff0000 ).build();
+		sentRuns.update( runs );
+		sentRuns.forget( ids );
+		assertTrue( sentRuns.changed( runs ) );
+	}
+
+	@Test
+	public void testToRepeatedArrays()
+	{
+		AddMovingSpotRequest request = ViewServiceClient.toRepeatedArrays( packedRequest( 7, 3 ) );
+		assertEquals( 7, request.getId() );
+		assertEquals( "tracklet", request.getLabel() );
+		assertEquals( ArrayFormat.REPEATED, request.getFormat() );
+		assertEquals( Arrays.asList( 0f, 0f, 0f, 1f, 1f, 1f, 2f, 2f, 2f ), request.getCoordinatesList() );
+		assertEquals( Arrays.asList( 0, 1, 2 ), request.getTimepointsList() );
+	}
+
+	@Test
+	public void testCapabilitiesOfOldAddon()
+	{
+		VersionResponse version = VersionResponse.newBuilder().setVersion( "0.1.0" ).build();
+		assertTrue( ViewServiceClient.getCapabilities( version ).isEmpty() );
+	}
+
+	@Test
+	public void testCapabilities()
+	{
+		VersionResponse version = VersionResponse.newBuilder()
+				.setVersion( "0.2.0" )
+				.setProtocolVersion( 2 )
+				.addCapabilities( Capability.PACKED_ARRAYS )
+				.addCapabilitiesValue( 1000 ) // capability of a newer addon, unknown to this client
+				.build();
+		assertEquals( EnumSet.of( Capability.PACKED_ARRAYS ), ViewServiceClient.getCapabilities( version ) );
+	}
+
+	@Test( expected = RuntimeException.class )
+	public void testIncompatibleAddon()
+	{
+		ViewServiceClient.getCapabilities( VersionResponse.newBuilder().setVersion( "0.0.1" ).build() );
+	}
+
+	private static AddMovingSpotRequest packedRequest( int id, int n )
+	{
+		ByteBuffer coordinates = ByteBuffer.allocate( 3 * Float.BYTES * n ).order( ByteOrder.LITTLE_ENDIAN );
+		ByteBuffer timepoints = ByteBuffer.allocate( Integer.BYTES * n ).order( ByteOrder.LITTLE_ENDIAN );
+		for ( int i = 0; i < n; i++ )
+		{
+			coordinates.putFloat( i ).putFloat( i ).putFloat( i );
+			timepoints.putInt( i );
+		}
+		return AddMovingSpotRequest.newBuilder()
+				.setId( id )
+				.setLabel( "tracklet" )
+				.setFormat( ArrayFormat.PACKED_LITTLE_ENDIAN )
+				.setPackedCoordinates( ByteString.copyFrom( coordinates.array() ) )
+				.setPackedTimepoints( ByteString.copyFrom( timepoints.array() ) )
+				.build();
+	}
+}